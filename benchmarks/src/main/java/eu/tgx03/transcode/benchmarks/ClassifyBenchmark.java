@@ -0,0 +1,73 @@
+package eu.tgx03.transcode.benchmarks;
+
+import eu.tgx03.transcode.FileClassifier;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the classification of files, either by their extension or by sniffing their content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class ClassifyBenchmark {
+
+	/**
+	 * The number of files to classify.
+	 */
+	private static final int FILES = 4096;
+
+	/**
+	 * Whether the files have their usual extension or have to be identified by their content.
+	 */
+	@Param({"true", "false"})
+	public boolean extensions;
+
+	/**
+	 * The directory containing the files.
+	 */
+	private Path root;
+	/**
+	 * The files to classify.
+	 */
+	private List<Path> files;
+	/**
+	 * The classifier, which keeps its buffers between invocations.
+	 */
+	private FileClassifier classifier;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		root = SyntheticTree.scratch("transcopy-classify");
+		files = SyntheticTree.create(root, SyntheticTree.Shape.FLAT, FILES, 0);
+		if (!extensions) {
+			for (int i = 0; i < files.size(); i++) {
+				Path file = files.get(i);
+				files.set(i, Files.move(file, file.resolveSibling(file.getFileName() + ".bin")));
+			}
+		}
+		classifier = new FileClassifier();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		SyntheticTree.delete(root);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void classify(Blackhole blackhole) {
+		Path file = files.get(ThreadLocalRandom.current().nextInt(files.size()));
+		blackhole.consume(classifier.classify(file));
+	}
+}
@@ -0,0 +1,104 @@
+package eu.tgx03.transcode.benchmarks;
+
+import eu.tgx03.transcode.CopyEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures moving files between two directories with the copy engine.
+ * The file gets moved back and forth, so every invocation transfers the same amount of data.
+ * Both directories are on the same file system by default, so the method decides whether the file gets renamed, linked, cloned or copied.
+ * Set the system property {@code transcopy.bench.target} to a directory on another device to measure actual copies.
+ * The throughput in bytes per second is reported as the {@code bytes} counter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class CopyBenchmark {
+
+	/**
+	 * The size of the moved file in KiB.
+	 */
+	@Param({"64", "65536"})
+	public int kilobytes;
+	/**
+	 * Whether the copied files get verified.
+	 */
+	@Param({"false", "true"})
+	public boolean verify;
+	/**
+	 * The fastest method the engine may use.
+	 */
+	@Param({"RENAME", "HARDLINK", "REFLINK", "COPY"})
+	public CopyEngine.Method method;
+
+	/**
+	 * The directory the file starts in.
+	 */
+	private Path source;
+	/**
+	 * The directory the file gets moved to.
+	 */
+	private Path target;
+	/**
+	 * The file in the source directory.
+	 */
+	private Path here;
+	/**
+	 * The file in the target directory.
+	 */
+	private Path there;
+	/**
+	 * The engine being measured.
+	 */
+	private CopyEngine engine;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		source = SyntheticTree.scratch("transcopy-copy");
+		String property = System.getProperty("transcopy.bench.target");
+		target = property == null ? SyntheticTree.scratch("transcopy-copy") : Files.createTempDirectory(Path.of(property), "transcopy-copy");
+		here = source.resolve("IMG_00000.JPG");
+		there = target.resolve("IMG_00000.JPG");
+		SyntheticTree.write(here, kilobytes * 1024, new Random(kilobytes), 0xFF, 0xD8, 0xFF);
+		engine = new CopyEngine(verify, method);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		SyntheticTree.delete(source);
+		SyntheticTree.delete(target);
+	}
+
+	@Benchmark
+	public void move(Bytes bytes) throws IOException {
+		CopyEngine.Result result = Files.exists(here) ? engine.move(here, there, false) : engine.move(there, here, false);
+		bytes.bytes += result.bytes();
+	}
+
+	/**
+	 * Counts the transferred bytes, which JMH reports as a rate next to the operations.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+
+		/**
+		 * The number of bytes transferred in the current iteration.
+		 */
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package eu.tgx03.transcode.benchmarks;
+
+import eu.tgx03.transcode.ContentIndex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a source file can be recognized as already present in the target,
+ * once through the content index and once by comparing both files completely.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class DuplicateCheckBenchmark {
+
+	/**
+	 * The number of files in source and target.
+	 */
+	@Param({"10000"})
+	public int files;
+
+	/**
+	 * The directory containing source and target.
+	 */
+	private Path root;
+	/**
+	 * The source directory.
+	 */
+	private Path source;
+	/**
+	 * The target directory.
+	 */
+	private Path target;
+	/**
+	 * The relative paths of all files.
+	 */
+	private List<Path> relatives;
+	/**
+	 * The index of the target.
+	 */
+	private ContentIndex index;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		root = SyntheticTree.scratch("transcopy-duplicates");
+		source = root.resolve("source");
+		target = root.resolve("target");
+		relatives = SyntheticTree.create(source, SyntheticTree.Shape.WIDE, files, 0).stream().map(source::relativize).toList();
+		index = new ContentIndex(target);
+		for (Path relative : relatives) {
+			Files.createDirectories(target.resolve(relative).getParent());
+			Files.copy(source.resolve(relative), target.resolve(relative));
+			index.add(relative, null);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		index.close();
+		SyntheticTree.delete(root);
+	}
+
+	/**
+	 * The check as done with the index: fingerprint the source and look up the target and the origin.
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void indexed(Blackhole blackhole) throws IOException {
+		Path relative = relatives.get(ThreadLocalRandom.current().nextInt(relatives.size()));
+		ContentIndex.Fingerprint fingerprint = ContentIndex.fingerprint(source.resolve(relative));
+		blackhole.consume(index.get(relative));
+		blackhole.consume(index.findOrigin(fingerprint));
+	}
+
+	/**
+	 * The check as done without the index: compare the content of both files.
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public long mismatch() throws IOException {
+		Path relative = relatives.get(ThreadLocalRandom.current().nextInt(relatives.size()));
+		return Files.mismatch(source.resolve(relative), target.resolve(relative));
+	}
+}
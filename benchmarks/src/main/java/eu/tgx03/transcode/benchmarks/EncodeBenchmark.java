@@ -0,0 +1,111 @@
+package eu.tgx03.transcode.benchmarks;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import eu.tgx03.transcode.ProbeCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead around encoding videos, using stub executables in place of FFmpeg and FFProbe.
+ * The stubs copy the input and print a fixed result, so only the process handling and the probe cache get measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class EncodeBenchmark {
+
+	/**
+	 * The directory containing the stubs, the video and the cache.
+	 */
+	private Path root;
+	/**
+	 * The directory containing the stub executables.
+	 */
+	private Path binaries;
+	/**
+	 * The video to probe and encode.
+	 */
+	private Path video;
+	/**
+	 * The location the encoded video gets written to.
+	 */
+	private Path output;
+	/**
+	 * The probe cache being measured.
+	 */
+	private ProbeCache cache;
+	/**
+	 * The modification time last given to the video.
+	 */
+	private long modified;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		root = SyntheticTree.scratch("transcopy-encode");
+		binaries = Files.createDirectory(root.resolve("bin"));
+		for (String name : new String[]{"ffmpeg", "ffprobe"}) {
+			Path stub = binaries.resolve(name);
+			try (InputStream in = EncodeBenchmark.class.getResourceAsStream("/stub/" + name)) {
+				if (in == null) throw new IOException("Missing stub " + name);
+				Files.copy(in, stub, StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.setPosixFilePermissions(stub, PosixFilePermissions.fromString("rwxr-xr-x"));
+		}
+		List<Path> videos = SyntheticTree.create(root, SyntheticTree.Shape.FLAT, 0, 1);
+		video = videos.getFirst();
+		modified = Files.getLastModifiedTime(video).toMillis();
+		output = root.resolve("encoded.mp4");
+		cache = new ProbeCache(root, 1024, binaries);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cache.close();
+		SyntheticTree.delete(root);
+	}
+
+	/**
+	 * Probing a file which is already cached.
+	 */
+	@Benchmark
+	public ProbeCache.Probe probeCached() throws IOException {
+		return cache.probe(video);
+	}
+
+	/**
+	 * Probing a file which changed since it was cached, which runs the stub.
+	 */
+	@Benchmark
+	public ProbeCache.Probe probeChanged() throws IOException {
+		modified += 1000;
+		Files.setLastModifiedTime(video, FileTime.fromMillis(modified));
+		return cache.probe(video);
+	}
+
+	/**
+	 * Running the stub encoder, which copies the video.
+	 */
+	@Benchmark
+	public void encode() {
+		FFmpeg.atPath(binaries)
+				.addInput(UrlInput.fromPath(video))
+				.addArguments("-c:v", "libx265")
+				.addOutput(UrlOutput.toPath(output))
+				.setOverwriteOutput(true)
+				.execute();
+	}
+}
@@ -0,0 +1,63 @@
+package eu.tgx03.transcode.benchmarks;
+
+import eu.tgx03.transcode.LaneQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Comparator;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of queueing and taking copy tasks, once with the lane queue now used by the copy workers
+ * and once with the priority queue they used before.
+ * Every invocation adds all tasks and then takes them again, the result is the time per task.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class QueueBenchmark {
+
+	/**
+	 * The number of queued tasks.
+	 */
+	private static final int TASKS = 100_000;
+	/**
+	 * The ordering formerly used by the copy workers, which only prefers futures.
+	 */
+	private static final Comparator<Runnable> FUTURES_FIRST = Comparator.comparingInt(task -> task instanceof FutureTask<?> ? 0 : 1);
+
+	/**
+	 * The tasks, of which every hundredth is a future like the ones created by submit.
+	 */
+	private final Runnable[] tasks = new Runnable[TASKS];
+
+	@Setup(Level.Trial)
+	public void setup() {
+		for (int i = 0; i < TASKS; i++) tasks[i] = i % 100 == 0 ? new FutureTask<>(() -> null) : () -> {
+		};
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public int priorityBlockingQueue() {
+		PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>(16, FUTURES_FIRST);
+		for (Runnable task : tasks) queue.put(task);
+		int taken = 0;
+		while (queue.poll() != null) taken++;
+		return taken;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public int laneQueue() {
+		LaneQueue<Runnable> queue = new LaneQueue<>(2, task -> task instanceof FutureTask<?> ? 0 : 1);
+		for (Runnable task : tasks) queue.offer(task);
+		int taken = 0;
+		while (queue.poll() != null) taken++;
+		return taken;
+	}
+}
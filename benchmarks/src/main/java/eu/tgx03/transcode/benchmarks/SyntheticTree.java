@@ -0,0 +1,167 @@
+package eu.tgx03.transcode.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Creates directory trees resembling a camera dump for the benchmarks.
+ * The trees get created on a tmpfs if one is available, so the benchmarks measure the code and not the disk.
+ */
+public final class SyntheticTree {
+
+	/**
+	 * The size of the generated images.
+	 */
+	public static final int IMAGE_SIZE = 64 * 1024;
+	/**
+	 * The size of the generated videos.
+	 */
+	public static final int VIDEO_SIZE = 64 * 1024 * 1024;
+	/**
+	 * The number of files per directory in a deep tree.
+	 */
+	private static final int FILES_PER_DIRECTORY = 16;
+
+	private SyntheticTree() {
+	}
+
+	/**
+	 * Creates an empty directory for a benchmark, preferring /dev/shm over the default temporary directory.
+	 *
+	 * @param name The prefix of the directory.
+	 * @return The new directory.
+	 * @throws IOException If the directory could not be created.
+	 */
+	@NotNull
+	public static Path scratch(@NotNull String name) throws IOException {
+		Path shm = Path.of("/dev/shm");
+		if (Files.isDirectory(shm) && Files.isWritable(shm)) return Files.createTempDirectory(shm, name);
+		return Files.createTempDirectory(name);
+	}
+
+	/**
+	 * Fills a directory with images and videos.
+	 *
+	 * @param root   The directory to fill.
+	 * @param shape  How the files get distributed across directories.
+	 * @param images The number of images.
+	 * @param videos The number of videos.
+	 * @return All created files.
+	 * @throws IOException If a file could not be written.
+	 */
+	@NotNull
+	public static List<Path> create(@NotNull Path root, @NotNull Shape shape, int images, int videos) throws IOException {
+		Random random = new Random(images * 31L + videos);
+		List<Path> files = new ArrayList<>(images + videos);
+		Path directory = root;
+		for (int i = 0; i < images; i++) {
+			if (i % FILES_PER_DIRECTORY == 0) directory = Files.createDirectories(shape.next(root, directory, i / FILES_PER_DIRECTORY));
+			Path image = directory.resolve(String.format("IMG_%05d.JPG", i));
+			write(image, IMAGE_SIZE, random, 0xFF, 0xD8, 0xFF, 0xE0);
+			files.add(image);
+		}
+		for (int i = 0; i < videos; i++) {
+			Path video = root.resolve(String.format("VID_%05d.MP4", i));
+			write(video, VIDEO_SIZE, random, 0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm');
+			files.add(video);
+		}
+		return files;
+	}
+
+	/**
+	 * Writes a file with the given header followed by random bytes.
+	 *
+	 * @param file   The file to write.
+	 * @param size   The size of the file.
+	 * @param random The source of the content.
+	 * @param header The first bytes of the file.
+	 * @throws IOException If the file could not be written.
+	 */
+	public static void write(@NotNull Path file, int size, @NotNull Random random, int... header) throws IOException {
+		byte[] chunk = new byte[Math.min(size, 1024 * 1024)];
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (int written = 0; written < size; written += chunk.length) {
+				random.nextBytes(chunk);
+				if (written == 0) {
+					for (int i = 0; i < header.length; i++) chunk[i] = (byte) header[i];
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, Math.min(chunk.length, size - written));
+				while (buffer.hasRemaining()) channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 *
+	 * @param root The directory to delete.
+	 * @throws IOException If the directory could not be listed.
+	 */
+	public static void delete(@NotNull Path root) throws IOException {
+		if (!Files.exists(root)) return;
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+				try {
+					Files.delete(path);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * The ways files get distributed across directories.
+	 */
+	public enum Shape {
+		/**
+		 * All files in one directory.
+		 */
+		FLAT {
+			@Override
+			Path next(Path root, Path current, int index) {
+				return root;
+			}
+		},
+		/**
+		 * Many sibling directories with few files each, like a dump sorted by day.
+		 */
+		WIDE {
+			@Override
+			Path next(Path root, Path current, int index) {
+				return root.resolve(String.format("%04d", index));
+			}
+		},
+		/**
+		 * A chain of nested directories with few files each.
+		 */
+		DEEP {
+			@Override
+			Path next(Path root, Path current, int index) {
+				return index == 0 ? root : current.resolve(String.format("%04d", index));
+			}
+		};
+
+		/**
+		 * Determines the directory for the next batch of files.
+		 *
+		 * @param root    The root of the tree.
+		 * @param current The directory of the previous batch.
+		 * @param index   The number of the batch.
+		 * @return The directory for the batch.
+		 */
+		abstract Path next(Path root, Path current, int index);
+	}
+}
@@ -0,0 +1,63 @@
+package eu.tgx03.transcode.benchmarks;
+
+import eu.tgx03.transcode.DirectoryWalker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long it takes to traverse a tree of small files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class WalkBenchmark {
+
+	/**
+	 * How the files are distributed.
+	 */
+	@Param({"FLAT", "WIDE", "DEEP"})
+	public SyntheticTree.Shape shape;
+	/**
+	 * The number of files in the tree.
+	 */
+	@Param({"20000"})
+	public int files;
+
+	/**
+	 * The root of the tree.
+	 */
+	private Path root;
+	/**
+	 * The executor running the walker.
+	 */
+	private ExecutorService executor;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		root = SyntheticTree.scratch("transcopy-walk");
+		SyntheticTree.create(root, shape, files, 0);
+		executor = Executors.newVirtualThreadPerTaskExecutor();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		executor.shutdown();
+		SyntheticTree.delete(root);
+	}
+
+	@Benchmark
+	public long walk() throws InterruptedException {
+		LongAdder visited = new LongAdder();
+		new DirectoryWalker(executor, (file, attributes) -> visited.increment()).walk(root);
+		return visited.sum();
+	}
+}
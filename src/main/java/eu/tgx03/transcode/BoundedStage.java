@@ -0,0 +1,192 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stage of the processing pipeline, consisting of a fixed number of workers and a bounded queue.
+ * When the queue is full, submitting threads block until space is available,
+ * so a fast producer gets slowed down to the speed of this stage instead of filling up memory.
+ */
+public class BoundedStage implements Executor {
+
+	/**
+	 * How long workers wait for new tasks before checking whether the stage got closed.
+	 */
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * The name of this stage.
+	 */
+	private final String name;
+	/**
+	 * The tasks waiting to be executed.
+	 */
+	private final ArrayBlockingQueue<Runnable> queue;
+	/**
+	 * The threads executing the tasks.
+	 */
+	private final Thread[] workers;
+	/**
+	 * When this stage got created.
+	 */
+	private final long created = System.nanoTime();
+	/**
+	 * Counter for the completed tasks.
+	 */
+	private final LongAdder completed = new LongAdder();
+	/**
+	 * Counter for the tasks which failed.
+	 */
+	private final LongAdder failed = new LongAdder();
+	/**
+	 * The total time the workers spent executing tasks.
+	 */
+	private final LongAdder busyNanos = new LongAdder();
+
+	/**
+	 * This boolean gets set when the stage shall not accept any new tasks.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates and starts a new stage.
+	 *
+	 * @param name     The name of the stage and its threads.
+	 * @param workers  The number of workers.
+	 * @param capacity The number of tasks which may wait.
+	 * @param virtual  Whether the workers should be virtual threads, which is preferable if they mostly wait.
+	 */
+	public BoundedStage(@NotNull String name, int workers, int capacity, boolean virtual) {
+		this.name = name;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.workers = new Thread[workers];
+		Thread.Builder builder = virtual ? Thread.ofVirtual().name(name + " #", 0) : Thread.ofPlatform().name(name + " #", 0);
+		for (int i = 0; i < workers; i++) this.workers[i] = builder.start(this::work);
+	}
+
+	/**
+	 * Adds a task, waiting until space is available.
+	 *
+	 * @param command The task to add.
+	 * @throws RejectedExecutionException If the stage has been closed or the thread got interrupted while waiting.
+	 */
+	@Override
+	public void execute(@NotNull Runnable command) throws RejectedExecutionException {
+		if (closed) throw new RejectedExecutionException(name + " has been closed");
+		try {
+			queue.put(command);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for " + name, e);
+		}
+	}
+
+	/**
+	 * Adds a task if space is available.
+	 *
+	 * @param command The task to add.
+	 * @return Whether the task was added.
+	 */
+	public boolean tryExecute(@NotNull Runnable command) {
+		return !closed && queue.offer(command);
+	}
+
+	/**
+	 * Stops accepting new tasks and waits until all remaining tasks have been executed.
+	 *
+	 * @throws InterruptedException If the thread got interrupted while waiting.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		for (Thread worker : workers) worker.join();
+	}
+
+	/**
+	 * Takes tasks from the queue until the stage gets closed and the queue is empty.
+	 */
+	private void work() {
+		while (!closed || !queue.isEmpty()) {
+			Runnable task;
+			try {
+				task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (task == null) continue;
+			long start = System.nanoTime();
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				failed.increment();
+				e.printStackTrace();
+			} finally {
+				busyNanos.add(System.nanoTime() - start);
+				completed.increment();
+			}
+		}
+	}
+
+	/**
+	 * @return The name of this stage.
+	 */
+	@NotNull
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The number of tasks currently waiting.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The number of tasks which may wait at once.
+	 */
+	public int getCapacity() {
+		return queue.size() + queue.remainingCapacity();
+	}
+
+	/**
+	 * @return The number of completed tasks.
+	 */
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	/**
+	 * @return The number of tasks which failed.
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	/**
+	 * @return The average number of tasks completed per second since this stage got created.
+	 */
+	public double getThroughput() {
+		return completed.sum() / Math.max((System.nanoTime() - created) / 1e9, 1e-9);
+	}
+
+	/**
+	 * @return The share of time the workers spent executing tasks.
+	 */
+	public double getUtilization() {
+		return busyNanos.sum() / Math.max((double) (System.nanoTime() - created) * workers.length, 1);
+	}
+
+	/**
+	 * @return A summary of the statistics of this stage.
+	 */
+	@NotNull
+	public String getStatistics() {
+		return String.format("%s: %d tasks, %.1f tasks/s, %.0f%% utilization", name, completed.sum(), getThroughput(), 100 * getUtilization());
+	}
+}
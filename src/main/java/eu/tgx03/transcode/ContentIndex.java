@@ -0,0 +1,473 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * An index of all files in the target directory, stored in a file in the target root.
+ * For every file it keeps the size, modification time and a hash of sampled chunks of its content,
+ * as well as the fingerprint of the source the file was created from, if it is known.
+ * For encoded files the checksum of the entire source gets stored as well,
+ * as a source may only be deleted as duplicate of a file with different content if that matches.
+ * This allows to check for existing files without touching the target
+ * and to find duplicates which were stored under a different name.
+ * The file is an append-only log which gets memory-mapped on load and compacted on close.
+ * Every record carries its length and a checksum, so a record torn by a crash gets detected and cut off.
+ */
+public class ContentIndex implements Closeable {
+
+	/**
+	 * The name of the index file in the target root.
+	 */
+	public static final String FILE_NAME = ".transcopy-index";
+	/**
+	 * The magic number at the start of the index file.
+	 */
+	private static final int MAGIC = 0x54434958;
+	/**
+	 * The record type of an added or updated file.
+	 */
+	private static final byte PUT = 1;
+	/**
+	 * The record type of a removed file.
+	 */
+	private static final byte REMOVE = 2;
+	/**
+	 * The size stored for the origin of a file whose origin is unknown.
+	 */
+	private static final long UNKNOWN_ORIGIN = -1;
+	/**
+	 * The size of each chunk that gets hashed.
+	 * Files up to three times this size get hashed completely.
+	 */
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	/**
+	 * The buffers used for hashing, one per thread.
+	 */
+	private static final ThreadLocal<ByteBuffer> SAMPLE_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SAMPLE_SIZE));
+	/**
+	 * The size of the chunks read when computing the checksum of an entire file.
+	 */
+	private static final int CHECKSUM_CHUNK_SIZE = 1024 * 1024;
+	/**
+	 * The buffers used for checksums of entire files, one per thread.
+	 */
+	private static final ThreadLocal<ByteBuffer> CHECKSUM_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHECKSUM_CHUNK_SIZE));
+
+	/**
+	 * The root all paths in this index are relative to.
+	 */
+	private final Path root;
+	/**
+	 * The location of the index file.
+	 */
+	private final Path file;
+	/**
+	 * All indexed files, keyed by their relative path.
+	 */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	/**
+	 * The relative path of a file for each source fingerprint, see {@link Entry#effectiveOrigin()}.
+	 */
+	private final ConcurrentHashMap<Fingerprint, String> origins = new ConcurrentHashMap<>();
+	/**
+	 * The number of indexed files for each size of their origin, which allows ruling out duplicates without reading a source.
+	 */
+	private final ConcurrentHashMap<Long, Integer> originSizes = new ConcurrentHashMap<>();
+	/**
+	 * The channel new records get appended to, or null if the index is read-only.
+	 */
+	private final FileChannel log;
+
+	/**
+	 * Opens the index of a target directory, creating it if it doesn't exist yet.
+	 *
+	 * @param root The target directory.
+	 * @throws IOException If the index file could not be read or created.
+	 */
+	public ContentIndex(@NotNull Path root) throws IOException {
+		this(root, false);
+	}
+
+	/**
+	 * Opens the index of a target directory.
+	 * A read-only index only gets loaded, changes are kept in memory and nothing gets written to the target.
+	 *
+	 * @param root     The target directory.
+	 * @param readOnly Whether the index must not be written.
+	 * @throws IOException If the index file could not be read or created.
+	 */
+	public ContentIndex(@NotNull Path root, boolean readOnly) throws IOException {
+		this.root = root;
+		this.file = root.resolve(FILE_NAME);
+		boolean exists = Files.exists(file);
+		if (readOnly) {
+			if (exists) load();
+			log = null;
+			return;
+		}
+		Files.createDirectories(root);
+		long end = exists ? load() : 0;
+		log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// Cut off a truncated record, otherwise the records appended after it couldn't be read anymore.
+		if (exists && end < log.size()) log.truncate(end);
+		if (log.size() == 0) log.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, MAGIC));
+		log.position(log.size());
+	}
+
+	/**
+	 * Reads all records of the index file.
+	 * Reading stops at the first incomplete or corrupt record, as left behind by a crash.
+	 *
+	 * @return The end of the last valid record, or 0 if the file doesn't even contain the header.
+	 * @throws IOException If the file could not be read.
+	 */
+	private long load() throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < Integer.BYTES) return 0;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC) throw new IOException(file + " is not an index file");
+			long end = buffer.position();
+			while (read(buffer)) end = buffer.position();
+			return end;
+		}
+	}
+
+	/**
+	 * Reads a single record and applies it.
+	 *
+	 * @param buffer The buffer to read from.
+	 * @return Whether a valid record was read, or false if none is left.
+	 */
+	private boolean read(@NotNull ByteBuffer buffer) {
+		try {
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (length < 1 || length > buffer.remaining()) return false;
+			ByteBuffer record = buffer.slice(buffer.position(), length);
+			buffer.position(buffer.position() + length);
+			CRC32C crc = new CRC32C();
+			crc.update(record.duplicate());
+			if ((int) crc.getValue() != checksum) return false;
+			byte type = record.get();
+			byte[] path = new byte[record.getShort() & 0xFFFF];
+			record.get(path);
+			String relative = new String(path, StandardCharsets.UTF_8);
+			if (type == PUT) {
+				long size = record.getLong(), modified = record.getLong(), hash = record.getLong();
+				long originSize = record.getLong(), originHash = record.getLong(), originChecksum = record.getLong();
+				apply(relative, new Entry(size, modified, hash,
+						originSize == UNKNOWN_ORIGIN ? null : new Fingerprint(originSize, originHash), originChecksum));
+			} else if (type == REMOVE) apply(relative, null);
+			else return false;
+			return true;
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the entry of a file.
+	 *
+	 * @param relative The path relative to the target root.
+	 * @return The entry, or null if the file isn't indexed.
+	 */
+	@Nullable
+	public Entry get(@NotNull Path relative) {
+		return entries.get(key(relative));
+	}
+
+	/**
+	 * Looks for a file which was created from a source with the given fingerprint.
+	 *
+	 * @param origin The fingerprint of the source.
+	 * @return The path relative to the target root, or null if no such file is indexed.
+	 */
+	@Nullable
+	public Path findOrigin(@NotNull Fingerprint origin) {
+		String relative = origins.get(origin);
+		return relative == null ? null : Path.of(relative);
+	}
+
+	/**
+	 * Checks whether any indexed file could have been created from a source of the given size.
+	 * If not, a source of that size can't be a duplicate, so it doesn't need to be fingerprinted.
+	 *
+	 * @param size The size of the source.
+	 * @return Whether {@link #findOrigin(Fingerprint)} might find a file for a source of this size.
+	 */
+	public boolean hasOriginOfSize(long size) {
+		return originSizes.containsKey(size);
+	}
+
+	/**
+	 * Adds or replaces a file in the index.
+	 *
+	 * @param relative The path relative to the target root.
+	 * @param entry    The data of the file.
+	 */
+	public void put(@NotNull Path relative, @NotNull Entry entry) {
+		String key = key(relative);
+		apply(key, entry);
+		append(PUT, key, entry);
+	}
+
+	/**
+	 * Adds or replaces an existing file in the index by reading its attributes and hashing it.
+	 *
+	 * @param relative The path relative to the target root.
+	 * @param origin   The fingerprint of the source the file was created from, or null if it is unknown,
+	 *                 like for files which already existed in the target before they got indexed.
+	 * @return The new entry.
+	 * @throws IOException If the file could not be read.
+	 */
+	@NotNull
+	public Entry add(@NotNull Path relative, @Nullable Fingerprint origin) throws IOException {
+		Path path = root.resolve(relative);
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		Entry entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash(path, attributes.size()), origin, Entry.UNKNOWN_CHECKSUM);
+		put(relative, entry);
+		return entry;
+	}
+
+	/**
+	 * Removes a file from the index.
+	 *
+	 * @param relative The path relative to the target root.
+	 */
+	public void remove(@NotNull Path relative) {
+		String key = key(relative);
+		if (entries.containsKey(key)) {
+			apply(key, null);
+			append(REMOVE, key, null);
+		}
+	}
+
+	/**
+	 * Updates the in-memory maps.
+	 *
+	 * @param key   The relative path.
+	 * @param entry The new entry, or null if the file got removed.
+	 */
+	private void apply(@NotNull String key, @Nullable Entry entry) {
+		Entry previous = entry == null ? entries.remove(key) : entries.put(key, entry);
+		if (previous != null) {
+			origins.remove(previous.effectiveOrigin(), key);
+			originSizes.computeIfPresent(previous.effectiveOrigin().size(), (size, count) -> count == 1 ? null : count - 1);
+		}
+		if (entry != null) {
+			origins.put(entry.effectiveOrigin(), key);
+			originSizes.merge(entry.effectiveOrigin().size(), 1, Integer::sum);
+		}
+	}
+
+	/**
+	 * Appends a record to the index file.
+	 * Write errors only get reported, as the index gets rewritten completely on close.
+	 *
+	 * @param type  The type of the record.
+	 * @param key   The relative path.
+	 * @param entry The entry, or null for removals.
+	 */
+	private void append(byte type, @NotNull String key, @Nullable Entry entry) {
+		if (log == null) return;
+		ByteBuffer record = encode(type, key, entry);
+		synchronized (log) {
+			try {
+				while (record.hasRemaining()) log.write(record);
+			} catch (IOException e) {
+				System.err.println("Could not update " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the index file with only the current entries and closes it.
+	 *
+	 * @throws IOException If the index file could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (log == null) return;
+		synchronized (log) {
+			log.close();
+		}
+		Path compacted = file.resolveSibling(FILE_NAME + ".tmp");
+		try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, MAGIC));
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				ByteBuffer record = encode(PUT, entry.getKey(), entry.getValue());
+				while (record.hasRemaining()) channel.write(record);
+			}
+			channel.force(true);
+		}
+		Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Encodes a single record.
+	 *
+	 * @param type  The type of the record.
+	 * @param key   The relative path.
+	 * @param entry The entry, or null for removals.
+	 * @return The record, ready to be written.
+	 */
+	@NotNull
+	private static ByteBuffer encode(byte type, @NotNull String key, @Nullable Entry entry) {
+		byte[] path = key.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + Short.BYTES + path.length + (entry == null ? 0 : 6 * Long.BYTES);
+		ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + length);
+		record.putInt(length).putInt(0).put(type).putShort((short) path.length).put(path);
+		if (entry != null) {
+			record.putLong(entry.size()).putLong(entry.modified()).putLong(entry.hash());
+			if (entry.origin() == null) record.putLong(UNKNOWN_ORIGIN).putLong(0);
+			else record.putLong(entry.origin().size()).putLong(entry.origin().hash());
+			record.putLong(entry.originChecksum());
+		}
+		CRC32C crc = new CRC32C();
+		crc.update(record.slice(2 * Integer.BYTES, length));
+		return record.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+	}
+
+	/**
+	 * Converts a relative path to the key used in the index,
+	 * which always uses forward slashes independent of the platform.
+	 *
+	 * @param relative The relative path.
+	 * @return The key.
+	 */
+	@NotNull
+	private static String key(@NotNull Path relative) {
+		return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+	}
+
+	/**
+	 * Calculates the fingerprint of a file.
+	 *
+	 * @param file The file to fingerprint.
+	 * @return The size and content hash of the file.
+	 * @throws IOException If the file could not be read.
+	 */
+	@NotNull
+	public static Fingerprint fingerprint(@NotNull Path file) throws IOException {
+		long size = Files.size(file);
+		return new Fingerprint(size, hash(file, size));
+	}
+
+	/**
+	 * Hashes the start, middle and end of a file, or the entire file if it is small.
+	 * The hash consists of a CRC32C and a CRC32 of the sampled data,
+	 * as both are computed using hardware instructions on most platforms.
+	 *
+	 * @param file The file to hash.
+	 * @param size The size of the file.
+	 * @return The hash of the file.
+	 * @throws IOException If the file could not be read.
+	 */
+	public static long hash(@NotNull Path file, long size) throws IOException {
+		CRC32C first = new CRC32C();
+		CRC32 second = new CRC32();
+		ByteBuffer buffer = SAMPLE_BUFFER.get();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long[] offsets = size <= 3L * SAMPLE_SIZE
+					? new long[]{0, SAMPLE_SIZE, 2L * SAMPLE_SIZE}
+					: new long[]{0, size / 2 - SAMPLE_SIZE / 2, size - SAMPLE_SIZE};
+			for (long offset : offsets) {
+				buffer.clear();
+				while (buffer.hasRemaining() && offset + buffer.position() < size) {
+					if (channel.read(buffer, offset + buffer.position()) < 0) break;
+				}
+				buffer.flip();
+				first.update(buffer.duplicate());
+				second.update(buffer);
+			}
+		}
+		return first.getValue() << 32 | second.getValue();
+	}
+
+	/**
+	 * Computes a checksum of the entire content of a file, consisting of a CRC32C and a CRC32 like {@link #hash(Path, long)}.
+	 *
+	 * @param file The file.
+	 * @return The checksum, which never is {@link Entry#UNKNOWN_CHECKSUM}.
+	 * @throws IOException If the file could not be read.
+	 */
+	public static long checksum(@NotNull Path file) throws IOException {
+		CRC32C first = new CRC32C();
+		CRC32 second = new CRC32();
+		ByteBuffer buffer = CHECKSUM_BUFFER.get();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (true) {
+				buffer.clear();
+				if (channel.read(buffer) < 0) break;
+				buffer.flip();
+				first.update(buffer.duplicate());
+				second.update(buffer);
+			}
+		}
+		long checksum = first.getValue() << 32 | second.getValue();
+		return checksum == Entry.UNKNOWN_CHECKSUM ? 0 : checksum;
+	}
+
+	/**
+	 * Identifies the content of a file.
+	 *
+	 * @param size The size of the file.
+	 * @param hash The hash of the sampled content.
+	 */
+	public record Fingerprint(long size, long hash) {
+	}
+
+	/**
+	 * The data stored for each file in the index.
+	 *
+	 * @param size           The size of the file.
+	 * @param modified       The time of the last modification in milliseconds since the epoch.
+	 * @param hash           The hash of the sampled content of the file.
+	 * @param origin         The fingerprint of the source the file was created from, or null if it is unknown.
+	 * @param originChecksum The {@link #checksum(Path)} of the entire source, or {@link #UNKNOWN_CHECKSUM}.
+	 */
+	public record Entry(long size, long modified, long hash, @Nullable Fingerprint origin, long originChecksum) {
+
+		/**
+		 * The checksum stored if the entire source hasn't been read.
+		 */
+		public static final long UNKNOWN_CHECKSUM = -1;
+
+		/**
+		 * @return The fingerprint of the file itself.
+		 */
+		@NotNull
+		public Fingerprint content() {
+			return new Fingerprint(size, hash);
+		}
+
+		/**
+		 * Returns the origin if it is known, otherwise the content of the file itself,
+		 * which is the origin of every file that got copied instead of encoded.
+		 *
+		 * @return The fingerprint the file can be found by.
+		 */
+		@NotNull
+		public Fingerprint effectiveOrigin() {
+			return origin == null ? content() : origin;
+		}
+	}
+}
@@ -0,0 +1,444 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Moves files to another location.
+ * Within the same file system files simply get renamed or linked, and file systems supporting it clone files instead of copying them.
+ * Otherwise the content gets transferred by the kernel where possible,
+ * written to a temporary sibling of the target and only renamed to the target once complete,
+ * so the target never contains a partial file.
+ * Methods which fail as the file systems don't support them don't get tried again for the same pair of file systems.
+ */
+public class CopyEngine {
+
+	/**
+	 * The size of the chunks transferred at once.
+	 */
+	private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+	/**
+	 * The suffix of the temporary files written next to the target.
+	 */
+	private static final String PART_SUFFIX = ".transcopy-part";
+	/**
+	 * The buffers used when the kernel can't transfer the content itself, one per thread.
+	 */
+	private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+
+	/**
+	 * Whether copied files get verified.
+	 */
+	private final boolean verify;
+	/**
+	 * The fastest method which may be used.
+	 */
+	private final Method fastest;
+	/**
+	 * The file stores of the directories files got moved from and to.
+	 */
+	private final Map<Path, FileStore> stores = new ConcurrentHashMap<>();
+	/**
+	 * The methods which failed for each pair of file stores.
+	 */
+	private final Map<StorePair, Set<Method>> unsupported = new ConcurrentHashMap<>();
+	/**
+	 * Counter for the files moved by each method.
+	 */
+	private final Map<Method, LongAdder> counters = new EnumMap<>(Method.class);
+	/**
+	 * The bytes moved by each method.
+	 */
+	private final Map<Method, LongAdder> bytes = new EnumMap<>(Method.class);
+
+	/**
+	 * Creates a new copy engine, which renames files where possible.
+	 *
+	 * @param verify Whether copied files should be verified by comparing the checksum of their entire content.
+	 */
+	public CopyEngine(boolean verify) {
+		this(verify, Method.RENAME);
+	}
+
+	/**
+	 * Creates a new copy engine.
+	 *
+	 * @param verify  Whether copied files should be verified by comparing the checksum of their entire content.
+	 * @param fastest The fastest method which may be used, slower ones get used if it isn't supported.
+	 */
+	public CopyEngine(boolean verify, @NotNull Method fastest) {
+		this.verify = verify;
+		this.fastest = fastest;
+		for (Method method : Method.values()) {
+			counters.put(method, new LongAdder());
+			bytes.put(method, new LongAdder());
+		}
+	}
+
+	/**
+	 * Returns the temporary file used while copying to the given target.
+	 *
+	 * @param target The target of a copy.
+	 * @return The temporary file next to the target.
+	 */
+	@NotNull
+	public static Path getPartFile(@NotNull Path target) {
+		return target.resolveSibling("." + target.getFileName() + PART_SUFFIX);
+	}
+
+	/**
+	 * Moves a file to the target.
+	 *
+	 * @param source  The file to move.
+	 * @param target  The location to move the file to.
+	 * @param replace Whether an existing target may be replaced, otherwise the move fails if it exists.
+	 * @return Statistics about the transfer.
+	 * @throws IOException If the file could not be moved.
+	 */
+	@NotNull
+	public Result move(@NotNull Path source, @NotNull Path target, boolean replace) throws IOException {
+		long start = System.nanoTime();
+		long size = Files.size(source);
+		FileStore from = getStore(source.toAbsolutePath().getParent());
+		FileStore to = getStore(target.toAbsolutePath().getParent());
+		Set<Method> failed = unsupported.computeIfAbsent(new StorePair(from, to), pair -> ConcurrentHashMap.newKeySet());
+		for (Method method : Method.values()) {
+			if (method.compareTo(fastest) < 0 || failed.contains(method)) continue;
+			// Renaming and linking only work within a file system, while clones may also work across subvolumes of the same type.
+			if ((method == Method.RENAME || method == Method.HARDLINK) && !from.equals(to)) continue;
+			if (method == Method.REFLINK && !from.type().equals(to.type())) continue;
+			if (move(method, source, target, size, replace)) {
+				counters.get(method).increment();
+				bytes.get(method).add(size);
+				return new Result(size, System.nanoTime() - start, method, from, to);
+			}
+			failed.add(method);
+		}
+		throw new IllegalStateException("Copying is always supported");
+	}
+
+	/**
+	 * Moves a file using a specific method.
+	 *
+	 * @param method The method.
+	 * @param source The file to move.
+	 * @param target The location to move the file to.
+	 * @param size    The size of the source.
+	 * @param replace Whether an existing target may be replaced.
+	 * @return Whether the file got moved, or false if the file systems don't support the method.
+	 * @throws IOException If the file could not be moved for another reason.
+	 */
+	private boolean move(@NotNull Method method, @NotNull Path source, @NotNull Path target, long size, boolean replace) throws IOException {
+		if (method == Method.RENAME) {
+			try {
+				rename(source, target, replace);
+				return true;
+			} catch (AtomicMoveNotSupportedException e) {
+				return false;
+			}
+		}
+
+		Path part = getPartFile(target);
+		try {
+			switch (method) {
+				case HARDLINK -> {
+					Files.deleteIfExists(part);
+					try {
+						Files.createLink(part, source);
+					} catch (NoSuchFileException e) {
+						throw e;
+					} catch (FileSystemException | UnsupportedOperationException e) {
+						return false;
+					}
+				}
+				case REFLINK -> {
+					if (!Reflink.clone(source, part)) {
+						Files.deleteIfExists(part);
+						return false;
+					}
+					copyAttributes(source, part);
+				}
+				default -> {
+					copy(source, part, size);
+					copyAttributes(source, part);
+				}
+			}
+			rename(part, target, replace);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(part);
+			throw e;
+		}
+		Files.delete(source);
+		return true;
+	}
+
+	/**
+	 * Copies the modification time and, where both file systems support them, the POSIX permissions of a file
+	 * to its copy, so the copy looks like the source did once it gets renamed.
+	 * Owner and group only get copied if the user is allowed to change them.
+	 *
+	 * @param source The original file.
+	 * @param copy   The copy.
+	 * @throws IOException If the attributes could not be read or set.
+	 */
+	private static void copyAttributes(@NotNull Path source, @NotNull Path copy) throws IOException {
+		PosixFileAttributeView from = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+		PosixFileAttributeView to = Files.getFileAttributeView(copy, PosixFileAttributeView.class);
+		if (from == null || to == null) {
+			Files.setLastModifiedTime(copy, Files.getLastModifiedTime(source));
+			return;
+		}
+		PosixFileAttributes attributes = from.readAttributes();
+		try {
+			to.setOwner(attributes.owner());
+		} catch (IOException ignored) {
+		}
+		try {
+			to.setGroup(attributes.group());
+		} catch (IOException ignored) {
+		}
+		// Changing the owner may clear the setuid and setgid bits, so the permissions have to come afterward.
+		to.setPermissions(attributes.permissions());
+		to.setTimes(attributes.lastModifiedTime(), null, null);
+	}
+
+	/**
+	 * Atomically renames a file.
+	 * As an atomic rename replaces an existing target on most platforms, the target gets checked for beforehand
+	 * if it must not be replaced.
+	 *
+	 * @param source  The file to rename.
+	 * @param target  The new name.
+	 * @param replace Whether an existing target may be replaced.
+	 * @throws FileAlreadyExistsException If the target exists and must not be replaced.
+	 * @throws IOException                If the file could not be renamed.
+	 */
+	public static void rename(@NotNull Path source, @NotNull Path target, boolean replace) throws IOException {
+		if (replace) Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		else {
+			if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) throw new FileAlreadyExistsException(target.toString());
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Returns the file store of a directory, which only gets looked up once per directory.
+	 *
+	 * @param directory The directory.
+	 * @return The file store.
+	 * @throws IOException If the file store could not be determined.
+	 */
+	@NotNull
+	private FileStore getStore(@NotNull Path directory) throws IOException {
+		FileStore store = stores.get(directory);
+		if (store == null) {
+			store = Files.getFileStore(directory);
+			stores.put(directory, store);
+		}
+		return store;
+	}
+
+	/**
+	 * @param method The method.
+	 * @return The number of files moved by the method.
+	 */
+	public long getCount(@NotNull Method method) {
+		return counters.get(method).sum();
+	}
+
+	/**
+	 * @param method The method.
+	 * @return The bytes moved by the method.
+	 */
+	public long getBytes(@NotNull Method method) {
+		return bytes.get(method).sum();
+	}
+
+	/**
+	 * @return A summary of how many files got moved by each method.
+	 */
+	@NotNull
+	public String getStatistics() {
+		return String.format("Transfers: %d renamed, %d hard linked, %d cloned, %d copied",
+				counters.get(Method.RENAME).sum(), counters.get(Method.HARDLINK).sum(),
+				counters.get(Method.REFLINK).sum(), counters.get(Method.COPY).sum());
+	}
+
+	/**
+	 * Copies the content of a file and forces it to disk.
+	 * When verifying, the content goes through a buffer instead of being transferred by the kernel,
+	 * so a checksum of the source gets computed from the bytes actually written.
+	 * Once the target has been forced to disk, it gets read back completely and its checksum has to match.
+	 *
+	 * @param source The file to copy.
+	 * @param target The file to write to.
+	 * @param size   The size of the source.
+	 * @throws IOException If the file could not be copied or the verification failed.
+	 */
+	private void copy(@NotNull Path source, @NotNull Path target, long size) throws IOException {
+		CRC32C written = verify ? new CRC32C() : null;
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		     FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long position = 0;
+			if (written == null) {
+				try {
+					while (position < size) {
+						long transferred = in.transferTo(position, Math.min(CHUNK_SIZE, size - position), out);
+						if (transferred <= 0) break;
+						position += transferred;
+					}
+				} catch (UnsupportedOperationException e) {
+					// The channels don't support transferring in the kernel, so continue with a buffer.
+					// Other errors, like a full disk, get thrown.
+				}
+			}
+			in.position(position);
+			out.position(position);
+			transfer(in, out, written);
+			out.force(false);
+		}
+		if (written != null && (Files.size(target) != size || checksum(target) != written.getValue()))
+			throw new IOException("Verification of " + target + " failed");
+	}
+
+	/**
+	 * Computes the checksum of the entire content of a file.
+	 *
+	 * @param file The file.
+	 * @return The CRC32C of the content.
+	 * @throws IOException If the file could not be read.
+	 */
+	private static long checksum(@NotNull Path file) throws IOException {
+		CRC32C checksum = new CRC32C();
+		ByteBuffer buffer = BUFFER.get();
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (true) {
+				buffer.clear();
+				if (in.read(buffer) < 0) break;
+				buffer.flip();
+				checksum.update(buffer);
+			}
+		}
+		return checksum.getValue();
+	}
+
+	/**
+	 * Measures how fast a directory can be written to by writing a file and forcing it to disk.
+	 * The file consists of random data, as file systems which compress would otherwise barely write anything.
+	 * The file gets deleted afterward.
+	 *
+	 * @param directory The directory to measure.
+	 * @param bytes     How many bytes to write.
+	 * @return The write speed in bytes per second.
+	 * @throws IOException If the file could not be written.
+	 */
+	public static double measureWriteSpeed(@NotNull Path directory, long bytes) throws IOException {
+		Files.createDirectories(directory);
+		Path probe = getPartFile(directory.resolve("speedtest"));
+		byte[] random = new byte[CHUNK_SIZE];
+		ThreadLocalRandom.current().nextBytes(random);
+		ByteBuffer buffer = ByteBuffer.wrap(random);
+		long start = System.nanoTime();
+		try (FileChannel out = FileChannel.open(probe, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (long written = 0; written < bytes; ) {
+				buffer.clear();
+				if (bytes - written < buffer.capacity()) buffer.limit((int) (bytes - written));
+				while (buffer.hasRemaining()) written += out.write(buffer);
+			}
+			out.force(false);
+		} finally {
+			Files.deleteIfExists(probe);
+		}
+		return bytes / Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+	}
+
+	/**
+	 * Copies the remaining content of a channel using a buffer.
+	 *
+	 * @param in       The channel to read from.
+	 * @param out      The channel to write to.
+	 * @param checksum The checksum to update with the copied content, or null.
+	 * @throws IOException If the content could not be copied.
+	 */
+	private static void transfer(@NotNull FileChannel in, @NotNull FileChannel out, @Nullable CRC32C checksum) throws IOException {
+		ByteBuffer buffer = BUFFER.get();
+		while (true) {
+			buffer.clear();
+			if (in.read(buffer) < 0) break;
+			buffer.flip();
+			if (checksum != null) checksum.update(buffer.duplicate());
+			while (buffer.hasRemaining()) out.write(buffer);
+		}
+	}
+
+	/**
+	 * The ways a file can get to the target, from the fastest to the slowest.
+	 */
+	public enum Method {
+		/**
+		 * Renames the file, which only works within a file system.
+		 */
+		RENAME,
+		/**
+		 * Links the target to the content of the source and then removes the source, which only works within a file system.
+		 */
+		HARDLINK,
+		/**
+		 * Clones the file, sharing its blocks until either gets modified, which works on btrfs, XFS and similar file systems.
+		 */
+		REFLINK,
+		/**
+		 * Copies the content of the file, which always works.
+		 */
+		COPY
+	}
+
+	/**
+	 * The file stores a file gets moved between.
+	 *
+	 * @param from The file store of the source.
+	 * @param to   The file store of the target.
+	 */
+	private record StorePair(@NotNull FileStore from, @NotNull FileStore to) {
+	}
+
+	/**
+	 * Statistics about a single transfer.
+	 *
+	 * @param bytes  The size of the file.
+	 * @param nanos  How long the transfer took.
+	 * @param method How the file got to the target.
+	 * @param from   The file store of the source.
+	 * @param to     The file store of the target.
+	 */
+	public record Result(long bytes, long nanos, @NotNull Method method, @NotNull FileStore from, @NotNull FileStore to) {
+
+		/**
+		 * @return Whether the content of the file had to be copied.
+		 */
+		public boolean copied() {
+			return method == Method.COPY;
+		}
+
+		/**
+		 * @return The throughput of the transfer in bytes per second.
+		 */
+		public double bytesPerSecond() {
+			return bytes / Math.max(nanos / 1e9, 1e-9);
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * An executor service which distributes copy operations to separate lanes per pair of source and target device,
+ * so that copies between different devices don't block each other.
+ * Each lane consists of a configurable number of {@link SingleThreadFuturePriorityExecutorService}s,
+ * so by default every device pair still only gets one copy at a time.
+ * Tasks which aren't a {@link Transfer} get executed on a separate default lane.
+ */
+public class CopyScheduler extends AbstractExecutorService implements ExecutorService {
+
+	/**
+	 * The number of concurrent copies for devices which have no explicit limit.
+	 */
+	private final int defaultConcurrency;
+	/**
+	 * The number of tasks which may wait for each worker.
+	 */
+	private final int capacity;
+	/**
+	 * The explicit concurrency limits, keyed by the name of the file store.
+	 */
+	private final Map<String, Integer> deviceConcurrency;
+	/**
+	 * The order in which each worker executes its tasks.
+	 */
+	private final PriorityPolicy policy;
+	/**
+	 * The file stores of the directories already looked up.
+	 */
+	private final ConcurrentHashMap<Path, FileStore> stores = new ConcurrentHashMap<>();
+	/**
+	 * The lanes for each pair of source and target device.
+	 */
+	private final ConcurrentHashMap<DevicePair, Lane> lanes = new ConcurrentHashMap<>();
+	/**
+	 * The lane used for all tasks which can't be assigned to a device pair.
+	 */
+	private final Lane defaultLane;
+
+	/**
+	 * This boolean gets set when this scheduler shall shut down.
+	 */
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates a new scheduler.
+	 *
+	 * @param defaultConcurrency The number of concurrent copies per device pair if no explicit limit is given.
+	 * @param deviceConcurrency  The concurrency limits for specific devices, keyed by the name of their file store.
+	 *                           A device pair uses the lower limit of both devices.
+	 * @param capacity           The number of tasks which may wait for each worker before adding blocks.
+	 * @param policy             The order in which each worker executes its tasks.
+	 */
+	public CopyScheduler(int defaultConcurrency, @NotNull Map<String, Integer> deviceConcurrency, int capacity, @NotNull PriorityPolicy policy) {
+		if (defaultConcurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.defaultConcurrency = defaultConcurrency;
+		this.deviceConcurrency = Map.copyOf(deviceConcurrency);
+		this.capacity = capacity;
+		this.policy = policy;
+		this.defaultLane = new Lane("Copier", 1, capacity, policy);
+	}
+
+	/**
+	 * Adds a new task to the lane of its device pair.
+	 *
+	 * @param command The task to add.
+	 * @throws RejectedExecutionException When the scheduler has been shut down.
+	 */
+	@Override
+	public void execute(@NotNull Runnable command) throws RejectedExecutionException {
+		if (shutdown) throw new RejectedExecutionException("This executor has been shut down");
+		Lane lane = defaultLane;
+		if (command instanceof Transfer transfer) {
+			try {
+				FileStore source = getStore(transfer.getSource());
+				FileStore target = getStore(transfer.getTarget());
+				lane = lanes.computeIfAbsent(new DevicePair(source, target), this::createLane);
+			} catch (IOException e) {
+				System.err.println("Could not determine device of " + transfer.getSource() + ": " + e.getMessage());
+			}
+		}
+		lane.execute(command);
+	}
+
+	/**
+	 * Determines the file store a path resides on.
+	 * As targets usually don't exist yet, the nearest existing parent gets used instead.
+	 * The results get cached per directory.
+	 *
+	 * @param path The path to get the file store of.
+	 * @return The file store of the path.
+	 * @throws IOException If no existing parent could be found.
+	 */
+	@NotNull
+	private FileStore getStore(@NotNull Path path) throws IOException {
+		Path directory = path.toAbsolutePath().getParent();
+		if (directory == null) return Files.getFileStore(path);
+		FileStore store = stores.get(directory);
+		if (store != null) return store;
+		Path existing = directory;
+		while (existing != null && !Files.exists(existing)) existing = existing.getParent();
+		if (existing == null) throw new IOException("No existing parent of " + path);
+		store = Files.getFileStore(existing);
+		stores.putIfAbsent(directory, store);
+		return store;
+	}
+
+	/**
+	 * Creates the lane for a device pair.
+	 * If this scheduler got shut down in the meantime, the lane gets shut down right away.
+	 *
+	 * @param pair The device pair to create the lane for.
+	 * @return The new lane.
+	 */
+	@NotNull
+	private Lane createLane(@NotNull DevicePair pair) {
+		int concurrency = Math.min(getConcurrency(pair.source()), getConcurrency(pair.target()));
+		Lane lane = new Lane("Copier " + pair.source().name() + " -> " + pair.target().name(), concurrency, capacity, policy);
+		if (shutdown) lane.shutdown();
+		return lane;
+	}
+
+	/**
+	 * Returns the number of concurrent copies allowed for a device.
+	 *
+	 * @param store The file store of the device.
+	 * @return How many copies may run at once.
+	 */
+	private int getConcurrency(@NotNull FileStore store) {
+		return deviceConcurrency.getOrDefault(store.name(), defaultConcurrency);
+	}
+
+	/**
+	 * @return The number of tasks waiting in all lanes.
+	 */
+	public int getQueueSize() {
+		int size = defaultLane.getQueueSize();
+		for (Lane lane : lanes.values()) size += lane.getQueueSize();
+		return size;
+	}
+
+	/**
+	 * @return The number of tasks which failed in all lanes.
+	 */
+	public long getFailed() {
+		long failed = defaultLane.getFailed();
+		for (Lane lane : lanes.values()) failed += lane.getFailed();
+		return failed;
+	}
+
+	/**
+	 * Shuts down all lanes, which still execute their remaining tasks.
+	 */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		defaultLane.shutdown();
+		lanes.values().forEach(Lane::shutdown);
+	}
+
+	/**
+	 * Shuts down all lanes immediately.
+	 *
+	 * @return All not-yet executed tasks of all lanes.
+	 */
+	@NotNull
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		List<Runnable> remaining = new ArrayList<>(defaultLane.shutdownNow());
+		for (Lane lane : lanes.values()) remaining.addAll(lane.shutdownNow());
+		return remaining;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && defaultLane.isTerminated() && lanes.values().stream().allMatch(Lane::isTerminated);
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (!defaultLane.awaitTermination(deadline)) return false;
+		for (Lane lane : lanes.values()) {
+			if (!lane.awaitTermination(deadline)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A task which copies a file from one location to another.
+	 */
+	public interface Transfer extends Runnable {
+
+		/**
+		 * @return The file that gets copied.
+		 */
+		@NotNull
+		Path getSource();
+
+		/**
+		 * @return The location the file gets copied to.
+		 */
+		@NotNull
+		Path getTarget();
+
+		/**
+		 * @return The size of the file as known when the transfer got planned.
+		 */
+		long getSize();
+	}
+
+	/**
+	 * The key of a lane.
+	 *
+	 * @param source The file store of the source files.
+	 * @param target The file store of the target files.
+	 */
+	private record DevicePair(@NotNull FileStore source, @NotNull FileStore target) {
+	}
+
+	/**
+	 * A set of workers for one device pair.
+	 * New tasks get handed to the worker with the shortest queue.
+	 */
+	private static class Lane {
+
+		/**
+		 * The workers of this lane.
+		 */
+		private final SingleThreadFuturePriorityExecutorService[] workers;
+
+		/**
+		 * Creates a new lane.
+		 *
+		 * @param name        The name of the worker threads.
+		 * @param concurrency The number of workers.
+		 * @param capacity    The number of tasks which may wait for each worker.
+		 * @param policy      The order in which each worker executes its tasks.
+		 */
+		private Lane(@NotNull String name, int concurrency, int capacity, @NotNull PriorityPolicy policy) {
+			workers = new SingleThreadFuturePriorityExecutorService[concurrency];
+			for (int i = 0; i < concurrency; i++) {
+				String threadName = concurrency == 1 ? name : name + " #" + i;
+				workers[i] = new SingleThreadFuturePriorityExecutorService(r -> new Thread(r, threadName), capacity, policy);
+			}
+		}
+
+		/**
+		 * Hands the task to the worker with the fewest queued tasks.
+		 *
+		 * @param command The task to execute.
+		 */
+		private void execute(@NotNull Runnable command) {
+			SingleThreadFuturePriorityExecutorService target = workers[0];
+			for (int i = 1; i < workers.length; i++) {
+				if (workers[i].getQueueSize() < target.getQueueSize()) target = workers[i];
+			}
+			target.execute(command);
+		}
+
+		private int getQueueSize() {
+			int size = 0;
+			for (SingleThreadFuturePriorityExecutorService worker : workers) size += worker.getQueueSize();
+			return size;
+		}
+
+		private long getFailed() {
+			long failed = 0;
+			for (SingleThreadFuturePriorityExecutorService worker : workers) failed += worker.getFailed();
+			return failed;
+		}
+
+		private void shutdown() {
+			for (SingleThreadFuturePriorityExecutorService worker : workers) worker.shutdown();
+		}
+
+		@NotNull
+		private List<Runnable> shutdownNow() {
+			List<Runnable> remaining = new ArrayList<>();
+			for (SingleThreadFuturePriorityExecutorService worker : workers) remaining.addAll(worker.shutdownNow());
+			return remaining;
+		}
+
+		private boolean isTerminated() {
+			for (SingleThreadFuturePriorityExecutorService worker : workers) {
+				if (!worker.isTerminated()) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Waits for all workers of this lane to terminate.
+		 *
+		 * @param deadline The {@link System#nanoTime()} until which to wait.
+		 * @return Whether all workers terminated in time.
+		 * @throws InterruptedException If the thread got interrupted while waiting.
+		 */
+		private boolean awaitTermination(long deadline) throws InterruptedException {
+			for (SingleThreadFuturePriorityExecutorService worker : workers) {
+				if (!worker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Walks a directory tree using directory streams,
+ * reading the attributes of every entry exactly once and handing files to a visitor as soon as they are found.
+ * Each directory gets scanned as its own task on the provided executor.
+ */
+public class DirectoryWalker {
+
+	/**
+	 * The executor the directory scans get submitted to.
+	 */
+	private final ExecutorService executor;
+	/**
+	 * The visitor that gets informed about every file and directory.
+	 */
+	private final Visitor visitor;
+	/**
+	 * The number of directories currently scanned or waiting to be scanned.
+	 */
+	private final AtomicLong pending = new AtomicLong();
+	/**
+	 * Gets released once all directories have been scanned.
+	 */
+	private final CountDownLatch finished = new CountDownLatch(1);
+	/**
+	 * Counter for the scanned directories.
+	 */
+	private final LongAdder directories = new LongAdder();
+	/**
+	 * Counter for the files handed to the visitor.
+	 */
+	private final LongAdder files = new LongAdder();
+
+	/**
+	 * Creates a new walker.
+	 *
+	 * @param executor The executor to scan the directories on.
+	 * @param visitor  The visitor to hand the entries to.
+	 */
+	public DirectoryWalker(@NotNull ExecutorService executor, @NotNull Visitor visitor) {
+		this.executor = executor;
+		this.visitor = visitor;
+	}
+
+	/**
+	 * Walks the entire tree below the given directory and returns once every directory has been scanned.
+	 * Afterward the throughput and the peak heap usage during the walk get printed.
+	 *
+	 * @param root The directory to start at.
+	 * @throws InterruptedException If the thread got interrupted while waiting for the walk to finish.
+	 */
+	public void walk(@NotNull Path root) throws InterruptedException {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+		long start = System.nanoTime();
+		schedule(root);
+		finished.await();
+		long duration = System.nanoTime() - start;
+
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		long entries = directories.sum() + files.sum();
+		System.out.printf("Traversed %d directories and %d files in %.2fs (%.0f entries/s, peak heap %d MiB)%n",
+				directories.sum(), files.sum(), duration / 1e9, entries / Math.max(duration / 1e9, 1e-9), peak >> 20);
+	}
+
+	/**
+	 * Submits a directory to be scanned.
+	 *
+	 * @param directory The directory to scan.
+	 */
+	private void schedule(@NotNull Path directory) {
+		pending.incrementAndGet();
+		visitor.preVisitDirectory(directory);
+		executor.execute(() -> scan(directory));
+	}
+
+	/**
+	 * Scans a single directory, scheduling all subdirectories and handing all files to the visitor.
+	 * If the visitor already knows the subdirectories, only those get scheduled and the directory doesn't get listed.
+	 *
+	 * @param directory The directory to scan.
+	 */
+	private void scan(@NotNull Path directory) {
+		Events.Directory event = new Events.Directory();
+		event.begin();
+		try {
+			Collection<Path> known = visitor.getKnownSubdirectories(directory);
+			if (known != null) {
+				event.resumed = true;
+				event.subdirectories = known.size();
+				known.forEach(this::schedule);
+			} else list(directory, event);
+		} finally {
+			if (event.shouldCommit()) {
+				event.directory = directory.toString();
+				event.commit();
+			}
+			directories.increment();
+			visitor.postVisitDirectory(directory);
+			if (pending.decrementAndGet() == 0) finished.countDown();
+		}
+	}
+
+	/**
+	 * Lists a directory, scheduling all subdirectories and handing all files to the visitor.
+	 *
+	 * @param directory The directory to list.
+	 * @param event     The event counting the found entries.
+	 */
+	private void list(@NotNull Path directory, @NotNull Events.Directory event) {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path entry : stream) {
+				BasicFileAttributes attributes;
+				try {
+					attributes = readAttributes(stream, entry);
+				} catch (IOException e) {
+					System.err.println("Could not read " + entry + ": " + e.getMessage());
+					continue;
+				}
+				if (attributes.isDirectory()) {
+					event.subdirectories++;
+					schedule(entry);
+				} else {
+					event.files++;
+					files.increment();
+					visitor.visitFile(entry, attributes);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads the attributes of a directory entry.
+	 * If the platform supports secure directory streams the attributes get read relative
+	 * to the already open directory, which saves resolving the entire path again.
+	 *
+	 * @param stream The stream the entry originates from.
+	 * @param entry  The entry to read the attributes of.
+	 * @return The attributes of the entry.
+	 * @throws IOException If the attributes could not be read.
+	 */
+	@NotNull
+	private static BasicFileAttributes readAttributes(@NotNull DirectoryStream<Path> stream, @NotNull Path entry) throws IOException {
+		if (stream instanceof SecureDirectoryStream<Path> secure) {
+			return secure.getFileAttributeView(entry.getFileName(), BasicFileAttributeView.class).readAttributes();
+		} else return Files.readAttributes(entry, BasicFileAttributes.class);
+	}
+
+	/**
+	 * The callback informed about the entries found during a walk.
+	 * All methods may get called concurrently from multiple threads.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Gets called for every regular file, symbolic link or other non-directory entry.
+		 *
+		 * @param file       The path of the file.
+		 * @param attributes The attributes read during the scan.
+		 */
+		void visitFile(@NotNull Path file, @NotNull BasicFileAttributes attributes);
+
+		/**
+		 * Gets called when a directory gets scheduled to be scanned.
+		 *
+		 * @param directory The directory.
+		 */
+		default void preVisitDirectory(@NotNull Path directory) {
+		}
+
+		/**
+		 * Allows skipping the listing of directories whose files have already been handled.
+		 *
+		 * @param directory The directory about to be scanned.
+		 * @return The subdirectories to schedule instead of listing the directory, or null if it should be listed.
+		 */
+		@Nullable
+		default Collection<Path> getKnownSubdirectories(@NotNull Path directory) {
+			return null;
+		}
+
+		/**
+		 * Gets called once a directory has been scanned completely.
+		 *
+		 * @param directory The directory.
+		 */
+		default void postVisitDirectory(@NotNull Path directory) {
+		}
+	}
+}
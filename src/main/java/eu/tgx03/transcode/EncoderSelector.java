@@ -0,0 +1,304 @@
+package eu.tgx03.transcode;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.NullOutput;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Determines the fastest working video encoder of this machine.
+ * All encoders known to FFMpeg get tested with a short synthetic encoding and the one with the highest frame rate wins.
+ * As the test takes a while, the result gets cached per host and only repeated once FFMpeg or its encoders change.
+ */
+public class EncoderSelector {
+
+	/**
+	 * The encoders to consider, each with settings resulting in roughly the same quality.
+	 */
+	private static final List<Profile> CANDIDATES = List.of(
+			new Profile("hevc_nvenc", List.of("-rc", "vbr", "-cq:v", "26", "-preset:v", "p5")),
+			new Profile("hevc_qsv", List.of("-global_quality", "26", "-preset:v", "medium")),
+			new Profile("hevc_amf", List.of("-rc", "cqp", "-qp_i", "24", "-qp_p", "26", "-quality", "balanced")),
+			new Profile("hevc_videotoolbox", List.of("-q:v", "60")),
+			new Profile("libx265", List.of("-crf", "26", "-preset:v", "medium")),
+			new Profile("libx264", List.of("-crf", "21", "-preset:v", "medium"))
+	);
+	/**
+	 * The number of frames encoded by each test.
+	 */
+	private static final int TEST_FRAMES = 120;
+	/**
+	 * The frame rate of the synthetic video.
+	 */
+	private static final int TEST_RATE = 30;
+	/**
+	 * The synthetic video used for the tests.
+	 */
+	private static final String TEST_SOURCE = "testsrc2=size=1920x1080:rate=" + TEST_RATE;
+
+	/**
+	 * The directory containing the FFMpeg executable, or null to look it up on the path.
+	 */
+	private final Path binaries;
+	/**
+	 * The file the result gets cached in.
+	 */
+	private final Path cache;
+	/**
+	 * The file the encoding speed of previous runs gets stored in.
+	 */
+	private final Path history;
+
+	/**
+	 * Creates a new selector.
+	 *
+	 * @param binaries The directory containing the FFMpeg executable, or null to look it up on the path.
+	 */
+	public EncoderSelector(@Nullable Path binaries) {
+		this.binaries = binaries;
+		this.cache = getCacheDirectory().resolve("encoder-" + getHostName() + ".properties");
+		this.history = getCacheDirectory().resolve("speed-" + getHostName() + ".properties");
+	}
+
+	/**
+	 * Returns the fastest working encoder, either from the cache or by testing all available candidates.
+	 *
+	 * @return The profile of the encoder.
+	 * @throws IOException If FFMpeg could not be run or no candidate works.
+	 */
+	@NotNull
+	public Profile select() throws IOException {
+		Capabilities capabilities = getCapabilities();
+		List<Profile> available = CANDIDATES.stream().filter(profile -> capabilities.encoders().contains(profile.encoder())).toList();
+		String key = capabilities.version() + " " + available.stream().map(Profile::encoder).toList();
+
+		Properties cached = load(cache);
+		String encoder = cached.getProperty("encoder");
+		if (key.equals(cached.getProperty("key")) && encoder != null) {
+			for (Profile profile : available) {
+				if (profile.encoder().equals(encoder)) {
+					System.out.println("Using cached encoder " + encoder);
+					return profile;
+				}
+			}
+		}
+
+		Profile best = null;
+		double bestFps = 0;
+		for (Profile profile : available) {
+			double fps = test(profile);
+			if (fps > 0) System.out.printf("Encoder %s: %.1f fps%n", profile.encoder(), fps);
+			else System.out.println("Encoder " + profile.encoder() + " doesn't work on this machine");
+			if (fps > bestFps) {
+				best = profile;
+				bestFps = fps;
+			}
+		}
+		if (best == null) throw new IOException("None of the encoders " + available + " works on this machine");
+		System.out.println("Using encoder " + best.encoder());
+
+		Properties result = new Properties();
+		result.setProperty("key", key);
+		result.setProperty("encoder", best.encoder());
+		result.setProperty("fps", String.format(Locale.ROOT, "%.1f", bestFps));
+		try {
+			Files.createDirectories(cache.getParent());
+			try (Writer writer = Files.newBufferedWriter(cache)) {
+				result.store(writer, "Fastest encoder of this host");
+			}
+		} catch (IOException e) {
+			System.err.println("Could not cache the encoder in " + cache + ": " + e.getMessage());
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the encoder chosen by a previous selection without running FFMpeg,
+	 * which may be outdated if the available encoders changed since then.
+	 *
+	 * @return The name of the encoder, or null if none has been selected on this machine yet.
+	 * @throws IOException If the cache could not be read.
+	 */
+	@Nullable
+	public String getCachedEncoder() throws IOException {
+		return load(cache).getProperty("encoder");
+	}
+
+	/**
+	 * Returns how fast an encoder encoded videos on this machine in previous runs.
+	 * If it hasn't been used yet, the frame rate of its test encoding gets used instead.
+	 *
+	 * @param encoder The name of the encoder.
+	 * @return The seconds of video encoded per second, or 0 if unknown.
+	 * @throws IOException If the stored speeds could not be read.
+	 */
+	public double getHistoricalSpeed(@NotNull String encoder) throws IOException {
+		Properties speeds = load(history);
+		String seconds = speeds.getProperty(encoder + ".seconds");
+		String nanos = speeds.getProperty(encoder + ".nanos");
+		if (seconds != null && nanos != null && Long.parseLong(nanos) > 0)
+			return Double.parseDouble(seconds) / (Long.parseLong(nanos) / 1e9);
+		Properties selected = load(cache);
+		String fps = selected.getProperty("fps");
+		if (encoder.equals(selected.getProperty("encoder")) && fps != null) return Double.parseDouble(fps) / TEST_RATE;
+		return 0;
+	}
+
+	/**
+	 * Adds the videos encoded by this run to the speed of the encoder.
+	 *
+	 * @param encoder The name of the encoder.
+	 * @param seconds The duration of the encoded videos in seconds.
+	 * @param nanos   The time it took to encode them.
+	 * @throws IOException If the speeds could not be stored.
+	 */
+	public void recordSpeed(@NotNull String encoder, double seconds, long nanos) throws IOException {
+		Properties speeds = load(history);
+		speeds.setProperty(encoder + ".seconds", String.format(Locale.ROOT, "%.3f",
+				Double.parseDouble(speeds.getProperty(encoder + ".seconds", "0")) + seconds));
+		speeds.setProperty(encoder + ".nanos", String.valueOf(Long.parseLong(speeds.getProperty(encoder + ".nanos", "0")) + nanos));
+		Files.createDirectories(history.getParent());
+		try (Writer writer = Files.newBufferedWriter(history)) {
+			speeds.store(writer, "Encoding speed of this host");
+		}
+	}
+
+	/**
+	 * Loads a properties file if it exists.
+	 *
+	 * @param file The file.
+	 * @return The properties, which are empty if the file doesn't exist.
+	 * @throws IOException If the file could not be read.
+	 */
+	@NotNull
+	private static Properties load(@NotNull Path file) throws IOException {
+		Properties properties = new Properties();
+		if (Files.exists(file)) {
+			try (Reader reader = Files.newBufferedReader(file)) {
+				properties.load(reader);
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Asks FFMpeg for its version, encoders and hardware decoders.
+	 *
+	 * @return What FFMpeg supports.
+	 * @throws IOException If FFMpeg could not be run.
+	 */
+	@NotNull
+	public Capabilities getCapabilities() throws IOException {
+		List<String> version = run("-version");
+		Set<String> encoders = new HashSet<>();
+		// The encoders are listed after a legend, as flags like "V....D" followed by the name.
+		for (String line : run("-encoders")) {
+			String[] columns = line.trim().split("\\s+");
+			if (columns.length >= 2 && columns[0].length() == 6 && columns[0].charAt(0) == 'V' && !columns[1].equals("="))
+				encoders.add(columns[1]);
+		}
+		Set<String> hwaccels = new LinkedHashSet<>();
+		for (String line : run("-hwaccels")) {
+			String name = line.trim();
+			if (!name.isEmpty() && !name.endsWith(":")) hwaccels.add(name);
+		}
+		return new Capabilities(version.isEmpty() ? "" : version.getFirst(), encoders, hwaccels);
+	}
+
+	/**
+	 * Runs FFMpeg with a single option and returns what it printed.
+	 *
+	 * @param option The option, like "-encoders".
+	 * @return The lines printed.
+	 * @throws IOException If FFMpeg could not be run or failed.
+	 */
+	@NotNull
+	private List<String> run(@NotNull String option) throws IOException {
+		String executable = binaries == null ? "ffmpeg" : binaries.resolve("ffmpeg").toString();
+		Process process = new ProcessBuilder(executable, "-hide_banner", option).redirectErrorStream(true).start();
+		List<String> lines;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			lines = reader.lines().toList();
+		}
+		try {
+			if (process.waitFor() != 0) throw new IOException("ffmpeg " + option + " failed");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while running ffmpeg " + option);
+		}
+		return lines;
+	}
+
+	/**
+	 * Encodes a short synthetic video with an encoder and discards the result.
+	 *
+	 * @param profile The encoder to test.
+	 * @return The frames encoded per second, or 0 if the encoder failed.
+	 */
+	private double test(@NotNull Profile profile) {
+		FFmpeg ffmpeg = (binaries == null ? FFmpeg.atPath() : FFmpeg.atPath(binaries))
+				.addInput(UrlInput.fromUrl(TEST_SOURCE).setFormat("lavfi"))
+				.addArguments("-c:v", profile.encoder());
+		for (int i = 0; i + 1 < profile.arguments().size(); i += 2)
+			ffmpeg.addArguments(profile.arguments().get(i), profile.arguments().get(i + 1));
+		ffmpeg.addArguments("-frames:v", String.valueOf(TEST_FRAMES)).addOutput(new NullOutput());
+		long start = System.nanoTime();
+		try {
+			ffmpeg.execute();
+		} catch (RuntimeException e) {
+			return 0;
+		}
+		return TEST_FRAMES / Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+	}
+
+	/**
+	 * @return The directory for cached data of this user.
+	 */
+	@NotNull
+	private static Path getCacheDirectory() {
+		String xdg = System.getenv("XDG_CACHE_HOME");
+		Path base = xdg != null && !xdg.isBlank() ? Path.of(xdg) : Path.of(System.getProperty("user.home"), ".cache");
+		return base.resolve("transcopy");
+	}
+
+	/**
+	 * @return The name of this machine, reduced to characters safe for a file name.
+	 */
+	@NotNull
+	private static String getHostName() {
+		String name;
+		try {
+			name = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			name = Objects.requireNonNullElse(System.getenv("HOSTNAME"), "localhost");
+		}
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * An encoder together with its quality settings.
+	 *
+	 * @param encoder   The name of the encoder as given to FFMpeg.
+	 * @param arguments The quality settings as pairs of option and value.
+	 */
+	public record Profile(@NotNull String encoder, @NotNull List<String> arguments) {
+	}
+
+	/**
+	 * What the installed FFMpeg supports.
+	 *
+	 * @param version  The first line of the version information.
+	 * @param encoders The names of all video encoders.
+	 * @param hwaccels The names of all hardware decoding methods.
+	 */
+	public record Capabilities(@NotNull String version, @NotNull Set<String> encoders, @NotNull Set<String> hwaccels) {
+	}
+}
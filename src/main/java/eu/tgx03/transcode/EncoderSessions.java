@@ -0,0 +1,79 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how many encodings may use the same encoder at once.
+ * Hardware encoders only support a limited number of sessions,
+ * and starting more than that makes FFMpeg fail instead of wait.
+ */
+public class EncoderSessions {
+
+	/**
+	 * The number of sessions hardware encoders get if nothing else was specified.
+	 * NVENC on consumer cards allows between 3 and 5 sessions depending on the driver.
+	 */
+	private static final int DEFAULT_HARDWARE_SESSIONS = 3;
+	/**
+	 * The name suffixes of encoders which are known to be limited in sessions.
+	 */
+	private static final String[] HARDWARE_SUFFIXES = {"_nvenc", "_amf"};
+
+	/**
+	 * The explicit session limits, keyed by the name of the encoder.
+	 */
+	private final Map<String, Integer> limits;
+	/**
+	 * The semaphores for each encoder already used.
+	 */
+	private final ConcurrentHashMap<String, Semaphore> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates new session limits.
+	 *
+	 * @param limits The explicit limits, keyed by the name of the encoder.
+	 */
+	public EncoderSessions(@NotNull Map<String, Integer> limits) {
+		this.limits = new HashMap<>(limits);
+	}
+
+	/**
+	 * Returns how many encodings may use the given encoder at once.
+	 *
+	 * @param encoder The name of the encoder as supplied to FFMpeg.
+	 * @return The maximum number of sessions, or {@link Integer#MAX_VALUE} if unlimited.
+	 */
+	public int getLimit(@NotNull String encoder) {
+		Integer limit = limits.get(encoder);
+		if (limit != null) return limit;
+		for (String suffix : HARDWARE_SUFFIXES) {
+			if (encoder.endsWith(suffix)) return DEFAULT_HARDWARE_SESSIONS;
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Waits until a session of the given encoder is available and takes it.
+	 *
+	 * @param encoder The name of the encoder.
+	 */
+	public void acquire(@NotNull String encoder) {
+		sessions.computeIfAbsent(encoder, e -> new Semaphore(getLimit(e), true)).acquireUninterruptibly();
+	}
+
+	/**
+	 * Returns a session previously taken by {@link #acquire(String)}.
+	 *
+	 * @param encoder The name of the encoder.
+	 */
+	public void release(@NotNull String encoder) {
+		Semaphore semaphore = sessions.get(encoder);
+		assert semaphore != null : "Released " + encoder + " without acquiring it";
+		semaphore.release();
+	}
+}
@@ -0,0 +1,203 @@
+package eu.tgx03.transcode;
+
+import jdk.jfr.*;
+
+/**
+ * The events recorded by Java Flight Recorder, so a recording of a run shows where the time went in each stage.
+ * They cost next to nothing unless a recording is running, which can be started with
+ * {@code -XX:StartFlightRecording:filename=run.jfr} and viewed in JDK Mission Control.
+ * The durations of the events are the time spent doing the work, the time spent waiting for it to start is recorded separately.
+ */
+public final class Events {
+
+	/**
+	 * The category all events get shown in.
+	 */
+	private static final String CATEGORY = "TransCopy";
+
+	private Events() {
+	}
+
+	/**
+	 * A directory of the source got scanned.
+	 */
+	@Name("eu.tgx03.transcode.Directory")
+	@Label("Directory Scan")
+	@Category({CATEGORY, "Traverser"})
+	@Description("Listing a directory of the source")
+	public static class Directory extends Event {
+
+		/**
+		 * The directory.
+		 */
+		@Label("Directory")
+		public String directory;
+		/**
+		 * The number of files found.
+		 */
+		@Label("Files")
+		public int files;
+		/**
+		 * The number of subdirectories found.
+		 */
+		@Label("Subdirectories")
+		public int subdirectories;
+		/**
+		 * Whether the subdirectories were known from the journal, so the directory didn't get listed.
+		 */
+		@Label("Resumed")
+		public boolean resumed;
+	}
+
+	/**
+	 * The kind of a file got determined.
+	 */
+	@Name("eu.tgx03.transcode.Classify")
+	@Label("Classification")
+	@Category({CATEGORY, "Classifier"})
+	@Description("Determining whether a file is an image, a video or something else")
+	public static class Classify extends Event {
+
+		/**
+		 * The file.
+		 */
+		@Label("File")
+		public String file;
+		/**
+		 * The kind of the file.
+		 */
+		@Label("Kind")
+		public String kind;
+	}
+
+	/**
+	 * A source got checked for already existing in the target.
+	 */
+	@Name("eu.tgx03.transcode.DuplicateCheck")
+	@Label("Duplicate Check")
+	@Category({CATEGORY, "Classifier"})
+	@Description("Checking whether the target or a file with the same content already exists")
+	public static class DuplicateCheck extends Event {
+
+		/**
+		 * The source.
+		 */
+		@Label("File")
+		public String file;
+		/**
+		 * Whether the source didn't need to be copied anymore.
+		 */
+		@Label("Exists")
+		public boolean exists;
+	}
+
+	/**
+	 * A video got probed.
+	 */
+	@Name("eu.tgx03.transcode.Probe")
+	@Label("Probe")
+	@Category({CATEGORY, "Prober"})
+	@Description("Reading the dimensions, codec and duration of a video")
+	public static class Probe extends Event {
+
+		/**
+		 * The video.
+		 */
+		@Label("File")
+		public String file;
+		/**
+		 * Whether the result was cached, so FFProbe didn't run.
+		 */
+		@Label("Cached")
+		public boolean cached;
+	}
+
+	/**
+	 * FFMpeg encoded, remuxed or joined a video or a part of it.
+	 */
+	@Name("eu.tgx03.transcode.Encode")
+	@Label("Encode")
+	@Category({CATEGORY, "Encoder"})
+	@Description("A single FFMpeg process")
+	public static class Encode extends Event {
+
+		/**
+		 * The source.
+		 */
+		@Label("File")
+		public String file;
+		/**
+		 * What FFMpeg did, which is encode, remux or join.
+		 */
+		@Label("Mode")
+		public String mode;
+		/**
+		 * The start of the encoded part in seconds, or a negative value if the whole source got encoded.
+		 */
+		@Label("Start")
+		public double start;
+		/**
+		 * The length of the encoded part in seconds, or a negative value if it got encoded until the end.
+		 */
+		@Label("Length")
+		public double length;
+		/**
+		 * Whether the source got decoded in hardware.
+		 */
+		@Label("Hardware Decoding")
+		public boolean hardwareDecoding;
+		/**
+		 * Whether FFMpeg succeeded.
+		 */
+		@Label("Succeeded")
+		public boolean succeeded;
+	}
+
+	/**
+	 * A file got moved to its final location.
+	 */
+	@Name("eu.tgx03.transcode.Move")
+	@Label("Move")
+	@Category({CATEGORY, "Copier"})
+	@Description("Moving a file into the target")
+	public static class Move extends Event {
+
+		/**
+		 * The source.
+		 */
+		@Label("Source")
+		public String source;
+		/**
+		 * The target.
+		 */
+		@Label("Target")
+		public String target;
+		/**
+		 * The size of the file.
+		 */
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+		/**
+		 * The method the file got moved with.
+		 */
+		@Label("Method")
+		public String method;
+		/**
+		 * The file store of the source.
+		 */
+		@Label("Source Store")
+		public String sourceStore;
+		/**
+		 * The file store of the target.
+		 */
+		@Label("Target Store")
+		public String targetStore;
+		/**
+		 * How long the move waited in the queue of the copier before it started.
+		 */
+		@Label("Queue Time")
+		@Timespan
+		public long queueTime;
+	}
+}
@@ -0,0 +1,243 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Determines whether a file is an image or a video.
+ * Known extensions get looked up in a table, while files with unknown extensions
+ * get identified by the signature at the start of their content.
+ */
+public class FileClassifier {
+
+	/**
+	 * The number of bytes read from files with unknown extensions.
+	 */
+	private static final int SNIFF_SIZE = 4096;
+	/**
+	 * The number of buffers kept for reading.
+	 */
+	private static final int POOL_SIZE = 64;
+	/**
+	 * The kind of every known extension.
+	 */
+	private static final Map<String, Kind> EXTENSIONS = new HashMap<>();
+
+	static {
+		for (String extension : new String[]{"jpg", "jpeg", "jpe", "jfif", "png", "gif", "bmp", "tif", "tiff", "webp",
+				"heic", "heif", "hif", "avif", "jxl",
+				"cr2", "cr3", "crw", "nef", "nrw", "arw", "srf", "sr2", "dng", "orf", "rw2", "raf", "pef", "srw",
+				"x3f", "3fr", "erf", "kdc", "mrw", "rwl", "iiq"}) {
+			EXTENSIONS.put(extension, Kind.IMAGE);
+		}
+		for (String extension : new String[]{"mp4", "m4v", "mov", "qt", "avi", "mkv", "webm", "wmv", "asf", "flv",
+				"mpg", "mpeg", "mpe", "m2v", "vob", "ts", "mts", "m2ts", "m2t", "3gp", "3g2", "ogv", "dv", "mxf",
+				"insv", "lrv"}) {
+			EXTENSIONS.put(extension, Kind.VIDEO);
+		}
+		for (String extension : new String[]{"txt", "xml", "xmp", "json", "ini", "log", "db", "thm", "pdf", "doc",
+				"docx", "html", "htm", "csv", "zip", "aae", "mp3", "m4a", "m4b", "m4p", "m4r", "wav", "flac", "aac", "ogg", "opus"}) {
+			EXTENSIONS.put(extension, Kind.OTHER);
+		}
+	}
+
+	/**
+	 * The direct buffers used for reading the start of files.
+	 */
+	private final ArrayBlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(POOL_SIZE);
+	/**
+	 * Counter for files classified by their extension.
+	 */
+	private final LongAdder byExtension = new LongAdder();
+	/**
+	 * Counter for files classified by their content.
+	 */
+	private final LongAdder byContent = new LongAdder();
+	/**
+	 * Counter for files which are neither images nor videos.
+	 */
+	private final LongAdder unknown = new LongAdder();
+	/**
+	 * The total time spent reading and examining file content.
+	 */
+	private final LongAdder sniffNanos = new LongAdder();
+
+	/**
+	 * Determines the kind of file.
+	 *
+	 * @param file The file to classify.
+	 * @return Whether the file is an image, a video or something else.
+	 */
+	@NotNull
+	public Kind classify(@NotNull Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		Kind kind = dot < 0 ? null : EXTENSIONS.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+		if (kind != null) byExtension.increment();
+		else {
+			long start = System.nanoTime();
+			kind = sniff(file);
+			sniffNanos.add(System.nanoTime() - start);
+			if (kind != Kind.OTHER) byContent.increment();
+		}
+		if (kind == Kind.OTHER) unknown.increment();
+		return kind;
+	}
+
+	/**
+	 * Reads the start of a file and compares it against the signatures of known image and video containers.
+	 *
+	 * @param file The file to read.
+	 * @return The kind of the file, or {@link Kind#OTHER} if it could not be identified.
+	 */
+	@NotNull
+	private Kind sniff(@NotNull Path file) {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) buffer = ByteBuffer.allocateDirect(SNIFF_SIZE);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer.clear();
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+			buffer.flip();
+			return identify(buffer);
+		} catch (IOException e) {
+			return Kind.OTHER;
+		} finally {
+			buffers.offer(buffer);
+		}
+	}
+
+	/**
+	 * Identifies a container by its signature.
+	 *
+	 * @param header The start of the file.
+	 * @return The kind of the container.
+	 */
+	@NotNull
+	private static Kind identify(@NotNull ByteBuffer header) {
+		if (startsWith(header, 0, 0xFF, 0xD8, 0xFF)) return Kind.IMAGE;
+		if (startsWith(header, 0, 0x89, 'P', 'N', 'G')) return Kind.IMAGE;
+		if (startsWith(header, 0, 'G', 'I', 'F', '8')) return Kind.IMAGE;
+		// TIFF, which most raw formats like NEF, ARW, DNG and CR2 are based on, as well as ORF and RW2.
+		if (startsWith(header, 0, 'I', 'I', '*', 0) || startsWith(header, 0, 'M', 'M', 0, '*')
+				|| startsWith(header, 0, 'I', 'I', 'R', 'O') || startsWith(header, 0, 'I', 'I', 'U', 0))
+			return Kind.IMAGE;
+		if (startsWith(header, 0, "FUJIFILMCCD-RAW")) return Kind.IMAGE;
+		if (startsWith(header, 0, "RIFF")) {
+			if (startsWith(header, 8, "WEBP")) return Kind.IMAGE;
+			if (startsWith(header, 8, "AVI ")) return Kind.VIDEO;
+		}
+		if (startsWith(header, 4, "ftyp") && header.limit() >= 12) {
+			String brand = ascii(header, 8, 4);
+			return switch (brand) {
+				case "heic", "heix", "heim", "heis", "mif1", "avif", "crx " -> Kind.IMAGE;
+				case "isom", "iso2", "iso4", "iso5", "iso6", "mp41", "mp42", "avc1", "mmp4", "dash", "qt  ", "M4V ", "M4VH", "M4VP",
+						"3gp4", "3gp5", "3gp6", "3gg6", "3g2a", "3g2b", "3g2c", "XAVC", "MSNV", "NDAS", "f4v ", "CAEP" -> Kind.VIDEO;
+				// Audio like M4A and M4B, or brands nothing is known about, which are better left alone than encoded.
+				default -> Kind.OTHER;
+			};
+		}
+		if (startsWith(header, 0, 0x1A, 0x45, 0xDF, 0xA3)) return Kind.VIDEO;
+		if (startsWith(header, 0, 0, 0, 1, 0xBA) || startsWith(header, 0, 0, 0, 1, 0xB3)) return Kind.VIDEO;
+		if (startsWith(header, 0, 0x30, 0x26, 0xB2, 0x75, 0x8E, 0x66, 0xCF, 0x11)) return Kind.VIDEO;
+		if (startsWith(header, 0, "FLV")) return Kind.VIDEO;
+		// MPEG transport streams with 188 byte packets, or 192 byte packets as used by MTS and M2TS.
+		if (isSyncedEvery(header, 0, 188) || isSyncedEvery(header, 4, 192)) return Kind.VIDEO;
+		return Kind.OTHER;
+	}
+
+	/**
+	 * Checks for the MPEG transport stream sync byte at the start of the first three packets.
+	 *
+	 * @param header The start of the file.
+	 * @param offset The offset of the sync byte within a packet.
+	 * @param packet The size of a packet.
+	 * @return Whether all three sync bytes are present.
+	 */
+	private static boolean isSyncedEvery(@NotNull ByteBuffer header, int offset, int packet) {
+		for (int i = 0; i < 3; i++) {
+			if (!startsWith(header, offset + i * packet, 0x47)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compares bytes at the given offset.
+	 *
+	 * @param header    The start of the file.
+	 * @param offset    The offset to compare at.
+	 * @param signature The expected bytes.
+	 * @return Whether all bytes match.
+	 */
+	private static boolean startsWith(@NotNull ByteBuffer header, int offset, int... signature) {
+		if (header.limit() < offset + signature.length) return false;
+		for (int i = 0; i < signature.length; i++) {
+			if ((header.get(offset + i) & 0xFF) != signature[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compares ASCII characters at the given offset.
+	 *
+	 * @param header    The start of the file.
+	 * @param offset    The offset to compare at.
+	 * @param signature The expected characters.
+	 * @return Whether all characters match.
+	 */
+	private static boolean startsWith(@NotNull ByteBuffer header, int offset, @NotNull String signature) {
+		return header.limit() >= offset + signature.length() && ascii(header, offset, signature.length()).equals(signature);
+	}
+
+	/**
+	 * Reads ASCII characters.
+	 *
+	 * @param header The start of the file.
+	 * @param offset The offset to read at.
+	 * @param length The number of characters.
+	 * @return The characters.
+	 */
+	@NotNull
+	private static String ascii(@NotNull ByteBuffer header, int offset, int length) {
+		byte[] bytes = new byte[length];
+		header.get(offset, bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return A summary of how the files were classified.
+	 */
+	@NotNull
+	public String getStatistics() {
+		return String.format("Classified %d files by extension and %d by content (%.1f ms spent reading content), %d skipped",
+				byExtension.sum(), byContent.sum(), sniffNanos.sum() / 1e6, unknown.sum());
+	}
+
+	/**
+	 * The kinds of files.
+	 */
+	public enum Kind {
+		/**
+		 * Images, which get copied.
+		 */
+		IMAGE,
+		/**
+		 * Videos, which get encoded.
+		 */
+		VIDEO,
+		/**
+		 * Everything else, which gets ignored.
+		 */
+		OTHER
+	}
+}
@@ -0,0 +1,132 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decodes videos on the same device the encoder runs on, so decoded frames don't get copied to the CPU and back.
+ * Only codecs the device is known to decode get decoded in hardware,
+ * everything else as well as failed hardware decodes fall back to software decoding.
+ */
+public class HardwareDecoding {
+
+	/**
+	 * The methods for each family of hardware encoders, keyed by the suffix of the encoder name.
+	 */
+	private static final Map<String, String> METHODS = Map.of(
+			"_nvenc", "cuda",
+			"_qsv", "qsv",
+			"_vaapi", "vaapi",
+			"_videotoolbox", "videotoolbox",
+			"_amf", "d3d11va"
+	);
+	/**
+	 * The format decoded frames are kept in for each method, which keeps them in the memory of the device.
+	 */
+	private static final Map<String, String> OUTPUT_FORMATS = Map.of(
+			"cuda", "cuda",
+			"qsv", "qsv",
+			"vaapi", "vaapi",
+			"videotoolbox", "videotoolbox_vld",
+			"d3d11va", "d3d11"
+	);
+	/**
+	 * The codecs each method is able to decode.
+	 */
+	private static final Map<String, Set<String>> CODECS = Map.of(
+			"cuda", Set.of("h264", "hevc", "av1", "vp8", "vp9", "mpeg1video", "mpeg2video", "mpeg4", "vc1", "mjpeg"),
+			"qsv", Set.of("h264", "hevc", "av1", "vp9", "mpeg2video", "vc1", "mjpeg"),
+			"vaapi", Set.of("h264", "hevc", "av1", "vp8", "vp9", "mpeg2video", "vc1", "mjpeg"),
+			"videotoolbox", Set.of("h264", "hevc", "prores", "mpeg2video", "mpeg4"),
+			"d3d11va", Set.of("h264", "hevc", "av1", "vp9", "mpeg2video", "vc1")
+	);
+
+	/**
+	 * The name of the method as given to FFMpeg.
+	 */
+	private final String method;
+	/**
+	 * Counter for videos decoded in hardware.
+	 */
+	private final LongAdder hardware = new LongAdder();
+	/**
+	 * Counter for videos decoded in software as their codec isn't supported.
+	 */
+	private final LongAdder unsupported = new LongAdder();
+	/**
+	 * Counter for videos decoded in software after decoding in hardware failed.
+	 */
+	private final LongAdder failed = new LongAdder();
+
+	/**
+	 * @param method The name of the method as given to FFMpeg.
+	 */
+	private HardwareDecoding(@NotNull String method) {
+		this.method = method;
+	}
+
+	/**
+	 * Determines the decoding method to use.
+	 *
+	 * @param setting   Either "auto" to use the method matching the encoder, or the name of a method.
+	 * @param encoder   The video encoder.
+	 * @param available The methods supported by FFMpeg.
+	 * @return The decoding, or null if videos should be decoded in software.
+	 */
+	@Nullable
+	public static HardwareDecoding select(@NotNull String setting, @NotNull String encoder, @NotNull Set<String> available) {
+		String method = setting;
+		if (setting.equals("auto")) {
+			method = null;
+			for (Map.Entry<String, String> entry : METHODS.entrySet()) {
+				if (encoder.endsWith(entry.getKey())) method = entry.getValue();
+			}
+			if (method == null) return null;
+		}
+		if (!available.contains(method)) {
+			System.out.println("FFMpeg doesn't support decoding with " + method + ", decoding in software");
+			return null;
+		}
+		return new HardwareDecoding(method);
+	}
+
+	/**
+	 * Returns the input arguments for decoding a video, or nothing if its codec can't be decoded in hardware.
+	 *
+	 * @param codec The codec of the video, or null if unknown.
+	 * @return The arguments as pairs of option and value.
+	 */
+	@NotNull
+	public List<String> getArguments(@Nullable String codec) {
+		Set<String> codecs = CODECS.get(method);
+		if (codecs != null && (codec == null || !codecs.contains(codec))) {
+			unsupported.increment();
+			return List.of();
+		}
+		hardware.increment();
+		String format = OUTPUT_FORMATS.get(method);
+		return format == null ? List.of("-hwaccel", method) : List.of("-hwaccel", method, "-hwaccel_output_format", format);
+	}
+
+	/**
+	 * Records that decoding a video in hardware failed and it gets decoded in software instead.
+	 */
+	public void failed() {
+		hardware.decrement();
+		failed.increment();
+	}
+
+	/**
+	 * @return A summary of how the videos were decoded.
+	 */
+	@NotNull
+	public String getStatistics() {
+		return String.format("Decoded %d videos with %s, %d in software due to their codec and %d after %s failed",
+				hardware.sum(), method, unsupported.sum(), failed.sum(), method);
+	}
+}
@@ -0,0 +1,282 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * A lock-free queue for many producers and a single consumer, which sorts its elements into a fixed number of lanes.
+ * The consumer always takes from the first non-empty lane, while within a lane elements are taken in the order they were added.
+ * Optionally one lane may temporarily be preferred over all others,
+ * and elements which waited too long get taken before elements of more important lanes.
+ * Adding an element never blocks and costs a single atomic swap, no matter how many elements are waiting.
+ * Only one thread may take elements, all other methods may be called from any thread.
+ *
+ * @param <E> The type of elements.
+ */
+public class LaneQueue<E> {
+
+	/**
+	 * The lanes, from the most to the least important.
+	 */
+	private final Lane<E>[] lanes;
+	/**
+	 * Determines the lane of each element.
+	 */
+	private final ToIntFunction<? super E> classifier;
+	/**
+	 * Returns the lane which currently takes precedence, or -1 if none does.
+	 */
+	private final IntSupplier urgent;
+	/**
+	 * How long in nanoseconds an element may wait before it gets taken ahead of more important lanes.
+	 */
+	private final long aging;
+	/**
+	 * The number of elements in all lanes.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * The consumer if it is waiting for an element, otherwise null.
+	 */
+	private volatile Thread waiter;
+	/**
+	 * This boolean gets set when the consumer shall stop waiting once the queue is empty.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new queue.
+	 *
+	 * @param lanes      The number of lanes.
+	 * @param classifier Returns the lane of an element, with 0 being the lane taken from first.
+	 */
+	public LaneQueue(int lanes, @NotNull ToIntFunction<? super E> classifier) {
+		this(lanes, classifier, () -> -1, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a new queue with a changing order of lanes.
+	 *
+	 * @param lanes      The number of lanes.
+	 * @param classifier Returns the lane of an element, with 0 being the lane taken from first.
+	 * @param urgent     Gets asked before every take for a lane which currently takes precedence, or -1 if none does.
+	 * @param aging      How long in nanoseconds an element may wait before it gets taken ahead of more important lanes,
+	 *                   or {@link Long#MAX_VALUE} to always keep the order of the lanes.
+	 */
+	public LaneQueue(int lanes, @NotNull ToIntFunction<? super E> classifier, @NotNull IntSupplier urgent, long aging) {
+		if (lanes < 1) throw new IllegalArgumentException("At least one lane is required");
+		this.lanes = newLanes(lanes);
+		for (int i = 0; i < lanes; i++) this.lanes[i] = new Lane<>();
+		this.classifier = classifier;
+		this.urgent = urgent;
+		this.aging = aging;
+	}
+
+	/**
+	 * Creates the array of lanes, as arrays of a generic type can't be created directly.
+	 *
+	 * @param count The number of lanes.
+	 * @param <E>   The type of elements.
+	 * @return The empty array.
+	 */
+	@SuppressWarnings("unchecked")
+	@NotNull
+	private static <E> Lane<E>[] newLanes(int count) {
+		return (Lane<E>[]) new Lane<?>[count];
+	}
+
+	/**
+	 * Adds an element to the end of its lane and wakes up the consumer if it is waiting.
+	 *
+	 * @param element The element to add.
+	 */
+	public void offer(@NotNull E element) {
+		int lane = Math.clamp(classifier.applyAsInt(element), 0, lanes.length - 1);
+		// Counting first means the size may briefly be too high, but never negative.
+		size.incrementAndGet();
+		lanes[lane].offer(element, aging == Long.MAX_VALUE ? 0 : System.nanoTime());
+		Thread consumer = waiter;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Takes the first element of the most important non-empty lane,
+	 * unless an urgent lane has elements or an element waited longer than the aging limit.
+	 * May only be called by the consumer.
+	 *
+	 * @return The element, or null if all lanes are empty.
+	 */
+	@Nullable
+	public E poll() {
+		int chosen = urgent.getAsInt();
+		if (chosen < 0 || chosen >= lanes.length || lanes[chosen].peek() == null) {
+			chosen = -1;
+			long now = aging == Long.MAX_VALUE ? 0 : System.nanoTime();
+			long oldest = Long.MAX_VALUE;
+			for (int i = 0; i < lanes.length; i++) {
+				Node<E> first = lanes[i].peek();
+				if (first == null) continue;
+				if (chosen < 0) {
+					chosen = i;
+					if (aging == Long.MAX_VALUE) break;
+				} else if (now - first.enqueued > aging && first.enqueued < oldest) {
+					// The most important lane isn't checked here, as taking from it is the default anyway.
+					chosen = i;
+					oldest = first.enqueued;
+				}
+			}
+			if (chosen < 0) return null;
+		}
+		E element = lanes[chosen].poll();
+		size.decrementAndGet();
+		return element;
+	}
+
+	/**
+	 * Takes the first element of the most important non-empty lane, waiting for one if the queue is empty.
+	 * May only be called by the consumer.
+	 *
+	 * @return The element, or null if the queue has been closed and is empty.
+	 * @throws InterruptedException If the thread got interrupted while waiting.
+	 */
+	@Nullable
+	public E take() throws InterruptedException {
+		while (true) {
+			E element = poll();
+			if (element != null) return element;
+			waiter = Thread.currentThread();
+			// Check again after announcing ourselves, as a producer may have added an element without seeing us.
+			element = poll();
+			if (element != null || closed) {
+				waiter = null;
+				return element;
+			}
+			LockSupport.park(this);
+			waiter = null;
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Lets the consumer stop waiting once the queue is empty.
+	 * Elements may still be added afterward.
+	 */
+	public void close() {
+		closed = true;
+		Thread consumer = waiter;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * @return The number of elements in all lanes.
+	 */
+	public int size() {
+		return Math.max(size.get(), 0);
+	}
+
+	/**
+	 * @return Whether all lanes are empty.
+	 */
+	public boolean isEmpty() {
+		return size.get() <= 0;
+	}
+
+	/**
+	 * Returns the elements currently waiting, in the order they would be taken.
+	 * Elements added or taken concurrently may or may not be included.
+	 *
+	 * @return A copy of the waiting elements.
+	 */
+	@NotNull
+	public List<E> snapshot() {
+		List<E> elements = new ArrayList<>(size());
+		for (Lane<E> lane : lanes) lane.collect(elements);
+		return elements;
+	}
+
+	/**
+	 * A single lane, being a linked list where producers swap in a new tail and the consumer advances the head.
+	 * The head always is an already taken node, so producers and the consumer never touch the same field.
+	 *
+	 * @param <E> The type of elements.
+	 */
+	private static final class Lane<E> {
+
+		/**
+		 * The last node, which new nodes get linked to.
+		 */
+		private final AtomicReference<Node<E>> tail;
+		/**
+		 * The node taken last, whose successor is the next element.
+		 */
+		private volatile Node<E> head;
+
+		private Lane() {
+			Node<E> sentinel = new Node<>(null, 0);
+			head = sentinel;
+			tail = new AtomicReference<>(sentinel);
+		}
+
+		private void offer(@NotNull E element, long enqueued) {
+			Node<E> node = new Node<>(element, enqueued);
+			tail.getAndSet(node).next = node;
+		}
+
+		@Nullable
+		private Node<E> peek() {
+			return head.next;
+		}
+
+		@Nullable
+		private E poll() {
+			Node<E> next = head.next;
+			if (next == null) return null;
+			E element = next.element;
+			next.element = null;
+			head = next;
+			return element;
+		}
+
+		private void collect(@NotNull List<E> elements) {
+			for (Node<E> node = head.next; node != null; node = node.next) {
+				E element = node.element;
+				if (element != null) elements.add(element);
+			}
+		}
+	}
+
+	/**
+	 * A node of a lane.
+	 *
+	 * @param <E> The type of elements.
+	 */
+	private static final class Node<E> {
+
+		/**
+		 * The element, which gets cleared once taken.
+		 */
+		private volatile E element;
+		/**
+		 * The following node, which gets set once a producer linked it.
+		 */
+		private volatile Node<E> next;
+		/**
+		 * When the element got added, if the queue uses aging.
+		 */
+		private final long enqueued;
+
+		private Node(@Nullable E element, long enqueued) {
+			this.element = element;
+			this.enqueued = enqueued;
+		}
+	}
+}
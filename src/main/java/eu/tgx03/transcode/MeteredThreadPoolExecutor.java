@@ -0,0 +1,170 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size thread pool with a bounded queue which keeps track of how long tasks wait and run.
+ * When the queue is full, the submitting thread runs the task itself, which slows down the producer.
+ */
+public class MeteredThreadPoolExecutor extends ThreadPoolExecutor {
+
+	/**
+	 * The name of this pool, used for the threads and the statistics.
+	 */
+	private final String name;
+	/**
+	 * Counter for the completed tasks.
+	 */
+	private final LongAdder completed = new LongAdder();
+	/**
+	 * The total time tasks spent in the queue.
+	 */
+	private final LongAdder waitNanos = new LongAdder();
+	/**
+	 * The total time tasks spent running.
+	 */
+	private final LongAdder serviceNanos = new LongAdder();
+	/**
+	 * The highest number of tasks waiting at once.
+	 */
+	private final AtomicInteger peakQueue = new AtomicInteger();
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param name     The name of the pool.
+	 * @param threads  The number of threads.
+	 * @param capacity The number of tasks which may wait in the queue.
+	 */
+	public MeteredThreadPoolExecutor(@NotNull String name, int threads, int capacity) {
+		super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(capacity), new NamedThreadFactory(name), new CallerRunsPolicy());
+		this.name = name;
+	}
+
+	@Override
+	public void execute(@NotNull Runnable command) {
+		super.execute(new Timed(command));
+		peakQueue.accumulateAndGet(getQueue().size(), Math::max);
+	}
+
+	/**
+	 * @return The number of tasks currently waiting.
+	 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	/**
+	 * @return The number of completed tasks.
+	 */
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	/**
+	 * @return The total time tasks spent waiting in nanoseconds.
+	 */
+	public long getWaitNanos() {
+		return waitNanos.sum();
+	}
+
+	/**
+	 * @return The total time tasks spent running in nanoseconds.
+	 */
+	public long getServiceNanos() {
+		return serviceNanos.sum();
+	}
+
+	/**
+	 * @return The average time tasks spent waiting in milliseconds.
+	 */
+	public double getAverageWaitMillis() {
+		return waitNanos.sum() / 1e6 / Math.max(completed.sum(), 1);
+	}
+
+	/**
+	 * @return The average time tasks spent running in milliseconds.
+	 */
+	public double getAverageServiceMillis() {
+		return serviceNanos.sum() / 1e6 / Math.max(completed.sum(), 1);
+	}
+
+	/**
+	 * @return A summary of the statistics of this pool.
+	 */
+	@NotNull
+	public String getStatistics() {
+		return String.format("%s: %d tasks, %.1f ms average wait, %.1f ms average runtime, %d peak queue depth",
+				name, completed.sum(), getAverageWaitMillis(), getAverageServiceMillis(), peakQueue.get());
+	}
+
+	/**
+	 * Wraps a task to measure how long it waited and ran.
+	 */
+	private class Timed implements Runnable {
+
+		/**
+		 * The actual task.
+		 */
+		private final Runnable task;
+		/**
+		 * When the task got submitted.
+		 */
+		private final long submitted = System.nanoTime();
+
+		/**
+		 * @param task The task to wrap.
+		 */
+		private Timed(@NotNull Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			waitNanos.add(start - submitted);
+			try {
+				task.run();
+			} finally {
+				serviceNanos.add(System.nanoTime() - start);
+				completed.increment();
+			}
+		}
+	}
+
+	/**
+	 * Creates numbered daemon threads with the name of the pool.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		/**
+		 * The name of the pool.
+		 */
+		private final String name;
+		/**
+		 * The number of the next thread.
+		 */
+		private final AtomicInteger counter = new AtomicInteger();
+
+		/**
+		 * @param name The name of the pool.
+		 */
+		private NamedThreadFactory(@NotNull String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(@NotNull Runnable r) {
+			Thread thread = new Thread(r, name + " #" + counter.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
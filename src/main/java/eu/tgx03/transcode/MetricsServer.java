@@ -0,0 +1,174 @@
+package eu.tgx03.transcode;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Serves metrics in the text format of Prometheus over HTTP.
+ * The values don't get collected by this class, they get read from the counters of the pipeline whenever the endpoint gets scraped,
+ * so keeping them up to date costs nothing beyond the counters themselves.
+ */
+public class MetricsServer {
+
+	/**
+	 * The content type of the text format.
+	 */
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * The registered metrics by name, in the order they got registered.
+	 */
+	private final Map<String, Family> families = new LinkedHashMap<>();
+	/**
+	 * The HTTP server.
+	 */
+	private final HttpServer server;
+
+	/**
+	 * Creates and starts a new server, which serves the metrics on /metrics.
+	 *
+	 * @param address The address to listen on.
+	 * @throws IOException If the server could not be started.
+	 */
+	public MetricsServer(@NotNull InetSocketAddress address) throws IOException {
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this::handle);
+		server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Metrics");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.start();
+	}
+
+	/**
+	 * Registers a value which can go up and down.
+	 *
+	 * @param name   The name of the metric.
+	 * @param help   The description of the metric.
+	 * @param labels The labels of this sample, like {@code stage="encoder"}, or an empty string.
+	 * @param value  Reads the current value.
+	 * @return This server.
+	 */
+	@NotNull
+	public MetricsServer gauge(@NotNull String name, @NotNull String help, @NotNull String labels, @NotNull DoubleSupplier value) {
+		return register("gauge", name, help, labels, value);
+	}
+
+	/**
+	 * Registers a value which only goes up.
+	 *
+	 * @param name   The name of the metric, which should end with _total.
+	 * @param help   The description of the metric.
+	 * @param labels The labels of this sample, like {@code stage="encoder"}, or an empty string.
+	 * @param value  Reads the current value.
+	 * @return This server.
+	 */
+	@NotNull
+	public MetricsServer counter(@NotNull String name, @NotNull String help, @NotNull String labels, @NotNull DoubleSupplier value) {
+		return register("counter", name, help, labels, value);
+	}
+
+	/**
+	 * Adds a sample to a metric, creating the metric if it doesn't exist yet.
+	 *
+	 * @param type   The type of the metric.
+	 * @param name   The name of the metric.
+	 * @param help   The description of the metric.
+	 * @param labels The labels of the sample.
+	 * @param value  Reads the current value.
+	 * @return This server.
+	 */
+	@NotNull
+	private synchronized MetricsServer register(@NotNull String type, @NotNull String name, @NotNull String help, @NotNull String labels, @NotNull DoubleSupplier value) {
+		families.computeIfAbsent(name, key -> new Family(type, help, new ArrayList<>())).samples().add(new Sample(labels, value));
+		return this;
+	}
+
+	/**
+	 * Answers a scrape with the current values of all metrics.
+	 *
+	 * @param exchange The request.
+	 * @throws IOException If the response could not be sent.
+	 */
+	private void handle(@NotNull HttpExchange exchange) throws IOException {
+		byte[] body = render().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * @return All metrics in the text format.
+	 */
+	@NotNull
+	private synchronized String render() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			text.append("# HELP ").append(name).append(' ').append(family.help()).append('\n');
+			text.append("# TYPE ").append(name).append(' ').append(family.type()).append('\n');
+			for (Sample sample : family.samples()) {
+				text.append(name);
+				if (!sample.labels().isEmpty()) text.append('{').append(sample.labels()).append('}');
+				text.append(' ').append(format(sample.value().getAsDouble())).append('\n');
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Formats a value, writing whole numbers without a fraction.
+	 *
+	 * @param value The value.
+	 * @return The formatted value.
+	 */
+	@NotNull
+	private static String format(double value) {
+		if (Double.isNaN(value)) return "NaN";
+		if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * A metric with all of its samples.
+	 *
+	 * @param type    The type of the metric.
+	 * @param help    The description of the metric.
+	 * @param samples The samples, which differ by their labels.
+	 */
+	private record Family(@NotNull String type, @NotNull String help, @NotNull List<Sample> samples) {
+	}
+
+	/**
+	 * A single value of a metric.
+	 *
+	 * @param labels The labels of the value.
+	 * @param value  Reads the current value.
+	 */
+	private record Sample(@NotNull String labels, @NotNull DoubleSupplier value) {
+	}
+}
@@ -0,0 +1,203 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides in which order the copy workers execute their tasks.
+ * Tasks get sorted into lanes when they are added, and the workers take from the first non-empty lane,
+ * while tasks within a lane run in the order they were added.
+ * Except for {@link #FUTURES_LAST}, futures go into the first lane, so callers waiting for a result don't wait behind copies.
+ */
+public interface PriorityPolicy {
+
+	/**
+	 * The policy which runs futures after everything else, which is the order the copy workers always used.
+	 */
+	PriorityPolicy FUTURES_LAST = new PriorityPolicy() {
+		@Override
+		public int getLanes() {
+			return 2;
+		}
+
+		@Override
+		public int getLane(@NotNull Runnable task) {
+			return task instanceof FutureTask<?> ? 1 : 0;
+		}
+	};
+	/**
+	 * The policy which only prefers futures over everything else.
+	 */
+	PriorityPolicy FUTURES_FIRST = new PriorityPolicy() {
+		@Override
+		public int getLanes() {
+			return 2;
+		}
+
+		@Override
+		public int getLane(@NotNull Runnable task) {
+			return task instanceof FutureTask<?> ? 0 : 1;
+		}
+	};
+
+	/**
+	 * Creates a policy by its name as given on the command line.
+	 *
+	 * @param name  Either "baseline", "futures" or "size".
+	 * @param aging How long a task may wait before it gets preferred over tasks of more important lanes.
+	 * @param unit  The unit of the aging limit.
+	 * @param temp  The directory encoded videos get written to before they get copied.
+	 * @param free  The share of free space of the temporary directory below which encoded videos get copied first.
+	 * @return The policy.
+	 * @throws IllegalArgumentException If no policy with that name exists.
+	 */
+	@NotNull
+	static PriorityPolicy forName(@NotNull String name, long aging, @NotNull TimeUnit unit, @NotNull Path temp, double free) {
+		return switch (name) {
+			case "baseline" -> FUTURES_LAST;
+			case "futures" -> FUTURES_FIRST;
+			case "size" -> new ShortestFirst(unit.toNanos(aging), temp, free);
+			default -> throw new IllegalArgumentException("Unknown priority policy " + name);
+		};
+	}
+
+	/**
+	 * @return The number of lanes.
+	 */
+	int getLanes();
+
+	/**
+	 * Determines the lane of a task when it gets added.
+	 *
+	 * @param task The task.
+	 * @return The lane, with 0 being the one taken from first.
+	 */
+	int getLane(@NotNull Runnable task);
+
+	/**
+	 * Gets checked every time a task gets taken and allows a lane to temporarily take precedence over all others.
+	 *
+	 * @return The lane to take from first right now, or -1 if the usual order applies.
+	 */
+	default int getUrgentLane() {
+		return -1;
+	}
+
+	/**
+	 * @return How long in nanoseconds a task may wait before it gets taken ahead of more important lanes,
+	 * or {@link Long#MAX_VALUE} if tasks never get promoted.
+	 */
+	default long getAgingNanos() {
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Prefers small files over large ones, so images arrive at the target quickly while videos are being copied.
+	 * Tasks which waited longer than the aging limit get taken first regardless of their size, so large files don't starve.
+	 * Encoded videos waiting in the temporary directory have their own lane,
+	 * which takes precedence over all others once the temporary directory is running out of space.
+	 */
+	class ShortestFirst implements PriorityPolicy {
+
+		/**
+		 * The upper size limits of the size lanes, the last lane takes everything larger.
+		 */
+		private static final long[] LIMITS = {16L << 20, 256L << 20, 4L << 30};
+		/**
+		 * The lane of tasks moving files out of the temporary directory.
+		 */
+		private static final int TEMP_LANE = LIMITS.length + 2;
+		/**
+		 * How often the free space of the temporary directory gets checked.
+		 */
+		private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+		/**
+		 * How long a task may wait before it gets promoted.
+		 */
+		private final long aging;
+		/**
+		 * The directory encoded videos get written to.
+		 */
+		private final Path temp;
+		/**
+		 * The file store of the temporary directory, or null if it could not be determined.
+		 */
+		private final FileStore store;
+		/**
+		 * The share of free space below which the temporary directory is considered full.
+		 */
+		private final double free;
+
+		/**
+		 * When the free space was checked last.
+		 */
+		private volatile long checked = System.nanoTime() - CHECK_INTERVAL;
+		/**
+		 * Whether the temporary directory was running out of space at the last check.
+		 */
+		private volatile boolean pressure = false;
+
+		/**
+		 * Creates a new policy.
+		 *
+		 * @param aging How long in nanoseconds a task may wait before it gets promoted.
+		 * @param temp  The directory encoded videos get written to.
+		 * @param free  The share of free space of the temporary directory below which encoded videos get copied first.
+		 */
+		public ShortestFirst(long aging, @NotNull Path temp, double free) {
+			this.aging = aging;
+			this.temp = temp.toAbsolutePath();
+			this.free = free;
+			FileStore store = null;
+			try {
+				store = Files.getFileStore(temp);
+			} catch (IOException e) {
+				System.err.println("Could not determine the free space of " + temp + ": " + e.getMessage());
+			}
+			this.store = store;
+		}
+
+		@Override
+		public int getLanes() {
+			return TEMP_LANE + 1;
+		}
+
+		@Override
+		public int getLane(@NotNull Runnable task) {
+			if (task instanceof FutureTask<?>) return 0;
+			if (!(task instanceof CopyScheduler.Transfer transfer)) return 1;
+			if (transfer.getSource().toAbsolutePath().startsWith(temp)) return TEMP_LANE;
+			long size = transfer.getSize();
+			for (int i = 0; i < LIMITS.length; i++) {
+				if (size < LIMITS[i]) return i + 1;
+			}
+			return LIMITS.length + 1;
+		}
+
+		@Override
+		public int getUrgentLane() {
+			if (store == null) return -1;
+			long now = System.nanoTime();
+			if (now - checked >= CHECK_INTERVAL) {
+				checked = now;
+				try {
+					pressure = store.getUsableSpace() < free * store.getTotalSpace();
+				} catch (IOException ignored) {
+				}
+			}
+			return pressure ? TEMP_LANE : -1;
+		}
+
+		@Override
+		public long getAgingNanos() {
+			return aging;
+		}
+	}
+}
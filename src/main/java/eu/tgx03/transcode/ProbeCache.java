@@ -0,0 +1,395 @@
+package eu.tgx03.transcode;
+
+import com.github.kokorin.jaffree.StreamType;
+import com.github.kokorin.jaffree.ffprobe.FFprobe;
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.github.kokorin.jaffree.ffprobe.Format;
+import com.github.kokorin.jaffree.ffprobe.Stream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * A cache of FFProbe results, stored in a file in the target root.
+ * Results are keyed by the absolute path of the file and are only valid as long as size and modification time match.
+ * The file is an append-only log of which only the offsets are kept in memory,
+ * while the results themselves are held in a size-limited LRU cache and read from the file on a miss.
+ * Every record carries its length and a checksum, so a record torn by a crash gets detected and cut off.
+ */
+public class ProbeCache implements Closeable {
+
+	/**
+	 * The name of the cache file in the target root.
+	 */
+	public static final String FILE_NAME = ".transcopy-probes";
+
+	/**
+	 * The size of the header of each record, consisting of the length and the checksum of the record.
+	 */
+	private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+	/**
+	 * The location of the cache file.
+	 */
+	private final Path file;
+	/**
+	 * The directory containing the FFProbe executable, or null to look it up on the path.
+	 */
+	private final Path binaries;
+	/**
+	 * The channel used to read and append records, or null if the cache is read-only and the file doesn't exist.
+	 */
+	private final FileChannel channel;
+	/**
+	 * Whether the cache file must not be written.
+	 */
+	private final boolean readOnly;
+	/**
+	 * The location of the newest record of each file.
+	 */
+	private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+	/**
+	 * The most recently used results.
+	 */
+	private final Map<String, Probe> recent;
+	/**
+	 * The number of records in the file which have been superseded.
+	 */
+	private final AtomicLong obsolete = new AtomicLong();
+	/**
+	 * Counter for lookups answered from memory.
+	 */
+	private final LongAdder memoryHits = new LongAdder();
+	/**
+	 * Counter for lookups answered from the cache file.
+	 */
+	private final LongAdder fileHits = new LongAdder();
+	/**
+	 * Counter for the files that actually had to be probed.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Opens the cache in the target root, creating it if it doesn't exist yet.
+	 *
+	 * @param root     The target directory.
+	 * @param capacity The number of results to keep in memory.
+	 * @param binaries The directory containing the FFProbe executable, or null to look it up on the path.
+	 * @throws IOException If the cache file could not be read or created.
+	 */
+	public ProbeCache(@NotNull Path root, int capacity, @Nullable Path binaries) throws IOException {
+		this(root, capacity, binaries, false);
+	}
+
+	/**
+	 * Opens the cache in the target root.
+	 * A read-only cache only gets loaded, new results are not stored and the file doesn't get created, repaired or compacted.
+	 *
+	 * @param root     The target directory.
+	 * @param capacity The number of results to keep in memory.
+	 * @param binaries The directory containing the FFProbe executable, or null to look it up on the path.
+	 * @param readOnly Whether the cache file must not be written.
+	 * @throws IOException If the cache file could not be read or created.
+	 */
+	public ProbeCache(@NotNull Path root, int capacity, @Nullable Path binaries, boolean readOnly) throws IOException {
+		this.file = root.resolve(FILE_NAME);
+		this.binaries = binaries;
+		this.readOnly = readOnly;
+		this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Probe> eldest) {
+				return size() > capacity;
+			}
+		};
+		if (!readOnly) channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		else if (Files.exists(file)) channel = FileChannel.open(file, StandardOpenOption.READ);
+		else channel = null;
+		if (channel != null) load();
+	}
+
+	/**
+	 * Builds the index of the cache file.
+	 * Everything from the first incomplete or corrupt record on, as left behind by a crash, gets cut off.
+	 *
+	 * @throws IOException If the file could not be read.
+	 */
+	private void load() throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		long end = 0;
+		try {
+			while (buffer.hasRemaining()) {
+				int offset = buffer.position();
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length < 0 || length > buffer.remaining()) break;
+				ByteBuffer record = buffer.slice(buffer.position(), length);
+				buffer.position(buffer.position() + length);
+				CRC32C crc = new CRC32C();
+				crc.update(record.duplicate());
+				if ((int) crc.getValue() != checksum) break;
+				String key = readString(record);
+				if (index.put(key, new Location(offset, record.getLong(), record.getLong())) != null)
+					obsolete.incrementAndGet();
+				end = buffer.position();
+			}
+		} catch (BufferUnderflowException ignored) {
+		}
+		if (readOnly) return;
+		if (end < channel.size()) channel.truncate(end);
+		channel.position(end);
+	}
+
+	/**
+	 * Returns the probe result of a file, running FFProbe only if no valid result is cached.
+	 *
+	 * @param path The file to probe.
+	 * @return The result of the probe.
+	 * @throws IOException If the file or the cache could not be read.
+	 */
+	@NotNull
+	public Probe probe(@NotNull Path path) throws IOException {
+		String key = path.toAbsolutePath().toString();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+		Events.Probe event = new Events.Probe();
+		event.begin();
+		Probe probe = getCached(key, size, modified);
+		if (probe != null) event.cached = true;
+		else {
+			misses.increment();
+			probe = runFFprobe(path);
+			put(key, size, modified, probe);
+		}
+		if (event.shouldCommit()) {
+			event.file = key;
+			event.commit();
+		}
+		return probe;
+	}
+
+	/**
+	 * Returns the probe result of a file only if a valid result is cached, without ever running FFProbe.
+	 *
+	 * @param path The file.
+	 * @return The cached result, or null if the file hasn't been probed since it was last modified.
+	 * @throws IOException If the file or the cache could not be read.
+	 */
+	@Nullable
+	public Probe peek(@NotNull Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		return getCached(path.toAbsolutePath().toString(), attributes.size(), attributes.lastModifiedTime().toMillis());
+	}
+
+	/**
+	 * Looks up a result in memory and then in the cache file.
+	 *
+	 * @param key      The absolute path of the file.
+	 * @param size     The current size of the file.
+	 * @param modified The time the file was last modified.
+	 * @return The result, or null if none is cached or the file changed since.
+	 * @throws IOException If the cache could not be read.
+	 */
+	@Nullable
+	private Probe getCached(@NotNull String key, long size, long modified) throws IOException {
+		Location location = index.get(key);
+		if (location == null || location.size() != size || location.modified() != modified) return null;
+		synchronized (recent) {
+			Probe probe = recent.get(key);
+			if (probe != null) {
+				memoryHits.increment();
+				return probe;
+			}
+		}
+		Probe probe = read(location);
+		if (probe != null) {
+			fileHits.increment();
+			synchronized (recent) {
+				recent.put(key, probe);
+			}
+		}
+		return probe;
+	}
+
+	/**
+	 * Runs FFProbe on a file.
+	 *
+	 * @param path The file to probe.
+	 * @return The data of the first video stream and the container.
+	 */
+	@NotNull
+	private Probe runFFprobe(@NotNull Path path) {
+		FFprobe ffprobe = binaries == null ? FFprobe.atPath() : FFprobe.atPath(binaries);
+		FFprobeResult result = ffprobe.setInput(path).setShowStreams(true).setShowFormat(true).execute();
+		Format format = result.getFormat();
+		Number duration = format == null ? null : format.getDuration();
+		Number bitrate = format == null ? null : format.getBitRate();
+		for (Stream stream : result.getStreams()) {
+			if (stream.getCodecType() == StreamType.VIDEO) {
+				if (duration == null) duration = stream.getDuration();
+				if (bitrate == null) bitrate = stream.getBitRate();
+				Integer width = stream.getWidth();
+				Integer height = stream.getHeight();
+				String codec = stream.getCodecName();
+				return new Probe(width == null ? 0 : width, height == null ? 0 : height, codec == null ? "" : codec,
+						duration == null ? 0 : duration.doubleValue(), bitrate == null ? 0 : bitrate.longValue());
+			}
+		}
+		throw new IllegalArgumentException("File has no video stream");
+	}
+
+	/**
+	 * Reads a single result from the cache file.
+	 *
+	 * @param location The location of the record.
+	 * @return The result, or null if the record could not be read.
+	 * @throws IOException If the file could not be read.
+	 */
+	@Nullable
+	private Probe read(@NotNull Location location) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+		channel.read(length, location.offset());
+		if (length.hasRemaining() || length.getInt(0) < 0) return null;
+		ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+		while (record.hasRemaining()) {
+			if (channel.read(record, location.offset() + HEADER_SIZE + record.position()) < 0) return null;
+		}
+		record.flip();
+		try {
+			readString(record);
+			record.getLong();
+			record.getLong();
+			return new Probe(record.getInt(), record.getInt(), readString(record), record.getDouble(), record.getLong());
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Appends a result to the cache file and keeps it in memory, or does nothing if the cache is read-only.
+	 *
+	 * @param key      The absolute path of the file.
+	 * @param size     The size of the file.
+	 * @param modified The modification time of the file.
+	 * @param probe    The result.
+	 */
+	void put(@NotNull String key, long size, long modified, @NotNull Probe probe) {
+		if (readOnly) return;
+		byte[] path = key.getBytes(StandardCharsets.UTF_8);
+		byte[] codec = probe.codec().getBytes(StandardCharsets.UTF_8);
+		int length = 2 * Short.BYTES + path.length + codec.length + 3 * Long.BYTES + 2 * Integer.BYTES + Double.BYTES;
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+		record.putInt(length).putInt(0).putShort((short) path.length).put(path).putLong(size).putLong(modified)
+				.putInt(probe.width()).putInt(probe.height()).putShort((short) codec.length).put(codec)
+				.putDouble(probe.duration()).putLong(probe.bitrate());
+		CRC32C crc = new CRC32C();
+		crc.update(record.slice(HEADER_SIZE, length));
+		record.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+		synchronized (channel) {
+			try {
+				long offset = channel.size();
+				while (record.hasRemaining()) channel.write(record, offset + record.position());
+				if (index.put(key, new Location(offset, size, modified)) != null) obsolete.incrementAndGet();
+			} catch (IOException e) {
+				System.err.println("Could not update " + file + ": " + e.getMessage());
+			}
+		}
+		synchronized (recent) {
+			recent.put(key, probe);
+		}
+	}
+
+	/**
+	 * Reads a string prefixed with its length.
+	 *
+	 * @param buffer The buffer to read from.
+	 * @return The string.
+	 */
+	@NotNull
+	private static String readString(@NotNull ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Closes the cache, rewriting the file without superseded records and records of files which don't exist anymore
+	 * if they make up most of it. As sources get deleted once they are moved, most of their records never get used again.
+	 * Afterward the hit rates get printed. A read-only cache only gets closed.
+	 *
+	 * @throws IOException If the cache file could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		System.out.printf("Probe cache: %d memory hits, %d file hits, %d probes%n", memoryHits.sum(), fileHits.sum(), misses.sum());
+		if (readOnly) {
+			if (channel != null) channel.close();
+			return;
+		}
+		synchronized (channel) {
+			int deleted = 0;
+			for (Iterator<String> keys = index.keySet().iterator(); keys.hasNext(); ) {
+				if (!Files.exists(Path.of(keys.next()))) {
+					keys.remove();
+					deleted++;
+				}
+			}
+			if (obsolete.get() + deleted <= index.size()) {
+				channel.close();
+				return;
+			}
+			Path compacted = file.resolveSibling(FILE_NAME + ".tmp");
+			try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (Location location : index.values()) {
+					ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+					channel.read(length, location.offset());
+					channel.transferTo(location.offset(), HEADER_SIZE + length.getInt(0), out);
+				}
+				out.force(true);
+			}
+			channel.close();
+			Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * The location of a record in the cache file.
+	 *
+	 * @param offset   The offset of the record.
+	 * @param size     The size of the file at the time it was probed.
+	 * @param modified The modification time of the file at the time it was probed.
+	 */
+	private record Location(long offset, long size, long modified) {
+	}
+
+	/**
+	 * The data FFProbe reported about a video.
+	 *
+	 * @param width    The width of the first video stream.
+	 * @param height   The height of the first video stream.
+	 * @param codec    The codec of the first video stream.
+	 * @param duration The duration in seconds.
+	 * @param bitrate  The overall bitrate in bits per second.
+	 */
+	public record Probe(int width, int height, @NotNull String codec, double duration, long bitrate) {
+	}
+}
@@ -0,0 +1,286 @@
+package eu.tgx03.transcode;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpegProgress;
+import com.github.kokorin.jaffree.ffmpeg.ProgressListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how much work is done, weighted by the size of the files instead of their number,
+ * so a single long encoding moves the progress as much as copying a file of the same size.
+ * Running encodings report their progress through FFMpeg, which also provides their frame rate and speed.
+ */
+public class ProgressMetrics {
+
+	/**
+	 * How long a part may go without reporting before its frame rate doesn't count anymore.
+	 */
+	private static final long STALE_NANOS = 2_000_000_000L;
+
+	/**
+	 * The bytes of all planned work.
+	 */
+	private final LongAdder planned = new LongAdder();
+	/**
+	 * The bytes of all completed work.
+	 */
+	private final LongAdder completed = new LongAdder();
+	/**
+	 * The encodings currently running.
+	 */
+	private final Collection<Encoding> running = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Adds work which still has to be done.
+	 *
+	 * @param bytes The size of the file to be copied or encoded.
+	 */
+	public void plan(long bytes) {
+		planned.add(bytes);
+	}
+
+	/**
+	 * Marks work as done.
+	 *
+	 * @param bytes The size of the copied file.
+	 */
+	public void complete(long bytes) {
+		completed.add(bytes);
+	}
+
+	/**
+	 * Starts tracking an encoding, whose source size counts as done proportionally to the encoded duration.
+	 *
+	 * @param name     The name of the video as displayed.
+	 * @param bytes    The size of the source, which was planned before.
+	 * @param duration The duration of the source in seconds, or 0 if unknown.
+	 * @return The encoding, which has to be finished once done.
+	 */
+	@NotNull
+	public Encoding start(@NotNull Path name, long bytes, double duration) {
+		Encoding encoding = new Encoding(name, bytes, duration);
+		running.add(encoding);
+		return encoding;
+	}
+
+	/**
+	 * @return The bytes of all planned work.
+	 */
+	public long getPlanned() {
+		return planned.sum();
+	}
+
+	/**
+	 * @return The bytes of all completed work, including the encoded share of running encodings.
+	 */
+	public long getCompleted() {
+		long sum = completed.sum();
+		for (Encoding encoding : running) sum += (long) (encoding.bytes * encoding.getFraction());
+		return sum;
+	}
+
+	/**
+	 * @return The encodings currently running.
+	 */
+	@NotNull
+	public Collection<Encoding> getRunning() {
+		return running;
+	}
+
+	/**
+	 * @return The frames encoded per second by all running encodings.
+	 */
+	public double getFps() {
+		double fps = 0;
+		for (Encoding encoding : running) fps += encoding.getFps();
+		return fps;
+	}
+
+	/**
+	 * @return The encoding which will take the longest to finish, or null if none is running.
+	 */
+	@Nullable
+	public Encoding getSlowest() {
+		Encoding slowest = null;
+		for (Encoding encoding : running) {
+			if (slowest == null || encoding.getEtaSeconds() > slowest.getEtaSeconds()) slowest = encoding;
+		}
+		return slowest;
+	}
+
+	/**
+	 * A running encoding, which may consist of multiple parts encoded at the same time.
+	 */
+	public class Encoding {
+
+		/**
+		 * The name of the video as displayed.
+		 */
+		private final Path name;
+		/**
+		 * The size of the source.
+		 */
+		private final long bytes;
+		/**
+		 * The duration of the source in seconds, or 0 if unknown.
+		 */
+		private final double duration;
+		/**
+		 * When the encoding started.
+		 */
+		private final long started = System.nanoTime();
+		/**
+		 * The milliseconds of the source encoded by all parts together.
+		 */
+		private final AtomicLong encodedMillis = new AtomicLong();
+		/**
+		 * The parts being encoded.
+		 */
+		private final Collection<Part> parts = new CopyOnWriteArrayList<>();
+
+		/**
+		 * @param name     The name of the video as displayed.
+		 * @param bytes    The size of the source.
+		 * @param duration The duration of the source in seconds, or 0 if unknown.
+		 */
+		private Encoding(@NotNull Path name, long bytes, double duration) {
+			this.name = name;
+			this.bytes = bytes;
+			this.duration = duration;
+		}
+
+		/**
+		 * Creates a listener for one FFMpeg process encoding the video or a part of it.
+		 *
+		 * @return The listener.
+		 */
+		@NotNull
+		public Part part() {
+			Part part = new Part();
+			parts.add(part);
+			return part;
+		}
+
+		/**
+		 * Stops tracking the encoding and counts its source as done, whether it succeeded or not.
+		 */
+		public void finish() {
+			if (running.remove(this)) completed.add(bytes);
+		}
+
+		/**
+		 * @return The name of the video as displayed.
+		 */
+		@NotNull
+		public Path getName() {
+			return name;
+		}
+
+		/**
+		 * @return The share of the source already encoded, between 0 and 1.
+		 */
+		public double getFraction() {
+			if (duration <= 0) return 0;
+			return Math.min(1, encodedMillis.get() / 1000.0 / duration);
+		}
+
+		/**
+		 * @return The frames encoded per second by all parts currently running.
+		 */
+		public double getFps() {
+			long now = System.nanoTime();
+			double fps = 0;
+			for (Part part : parts) {
+				if (now - part.reported < STALE_NANOS) fps += part.fps;
+			}
+			return fps;
+		}
+
+		/**
+		 * @return How many seconds of the source get encoded per second, averaged since the start.
+		 */
+		public double getSpeed() {
+			double elapsed = (System.nanoTime() - started) / 1e9;
+			return elapsed <= 0 ? 0 : encodedMillis.get() / 1000.0 / elapsed;
+		}
+
+		/**
+		 * @return The bytes written by all parts.
+		 */
+		public long getSize() {
+			long size = 0;
+			for (Part part : parts) size += part.size;
+			return size;
+		}
+
+		/**
+		 * @return The estimated seconds until the encoding finishes, or {@link Double#POSITIVE_INFINITY} if unknown.
+		 */
+		public double getEtaSeconds() {
+			double speed = getSpeed();
+			if (duration <= 0 || speed <= 0) return Double.POSITIVE_INFINITY;
+			return Math.max(0, duration - encodedMillis.get() / 1000.0) / speed;
+		}
+
+		@Override
+		public String toString() {
+			double eta = getEtaSeconds();
+			return String.format("%s %.0f%% %.0f fps %.2fx %d MiB ETA %s", name.getFileName(), getFraction() * 100,
+					getFps(), getSpeed(), getSize() >> 20,
+					Double.isInfinite(eta) ? "?" : String.format("%d:%02d", (long) eta / 60, (long) eta % 60));
+		}
+
+		/**
+		 * Receives the progress of a single FFMpeg process.
+		 * Only the increase of the encoded time gets added to the encoding, so parts can be reset and repeated.
+		 */
+		public class Part implements ProgressListener {
+
+			/**
+			 * The encoded time this part added to the encoding.
+			 */
+			private long millis = 0;
+			/**
+			 * The frame rate last reported.
+			 */
+			private volatile double fps = 0;
+			/**
+			 * The output size last reported.
+			 */
+			private volatile long size = 0;
+			/**
+			 * When the part reported last.
+			 */
+			private volatile long reported = 0;
+
+			@Override
+			public synchronized void onProgress(@NotNull FFmpegProgress progress) {
+				Long time = progress.getTimeMillis();
+				if (time != null && time > millis) {
+					encodedMillis.addAndGet(time - millis);
+					millis = time;
+				}
+				if (progress.getFps() != null) fps = progress.getFps();
+				if (progress.getSize() != null) size = progress.getSize();
+				reported = System.nanoTime();
+			}
+
+			/**
+			 * Removes the progress of this part, as it gets encoded again.
+			 */
+			public synchronized void reset() {
+				encodedMillis.addAndGet(-millis);
+				millis = 0;
+				fps = 0;
+				size = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+
+/**
+ * Clones files using the FICLONE ioctl of Linux, which lets the copy share the blocks of the source
+ * until either of them gets modified. This only works within a single btrfs, XFS or similar file system,
+ * but there it's nearly instant regardless of the size of the file.
+ */
+public class Reflink {
+
+	/**
+	 * The request number of FICLONE, _IOW(0x94, 9, int).
+	 */
+	private static final long FICLONE = 0x40049409L;
+	/**
+	 * Open the file for reading only.
+	 */
+	private static final int O_RDONLY = 0;
+	/**
+	 * Open the file for writing only.
+	 */
+	private static final int O_WRONLY = 01;
+	/**
+	 * Create the file if it doesn't exist.
+	 */
+	private static final int O_CREAT = 0100;
+	/**
+	 * Truncate the file if it exists.
+	 */
+	private static final int O_TRUNC = 01000;
+	/**
+	 * Close the file when executing another program, so FFMpeg doesn't inherit it.
+	 */
+	private static final int O_CLOEXEC = 02000000;
+	/**
+	 * The errors meaning the file system can't clone these files, in which case they have to be copied.
+	 * These are EXDEV, EINVAL, ENOTTY, ENOSYS and EOPNOTSUPP.
+	 */
+	private static final int[] UNSUPPORTED = {18, 22, 25, 38, 95};
+
+	/**
+	 * The layout of the state captured after each call.
+	 */
+	private static final StructLayout CAPTURE = Linker.Option.captureStateLayout();
+	/**
+	 * Reads errno from the captured state.
+	 */
+	private static final VarHandle ERRNO = CAPTURE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+	/**
+	 * open(2), or null if not running on Linux.
+	 */
+	private static final MethodHandle OPEN;
+	/**
+	 * ioctl(2), or null if not running on Linux.
+	 */
+	private static final MethodHandle IOCTL;
+	/**
+	 * close(2), or null if not running on Linux.
+	 */
+	private static final MethodHandle CLOSE;
+
+	static {
+		MethodHandle open = null, ioctl = null, close = null;
+		if (System.getProperty("os.name").equals("Linux")) {
+			try {
+				Linker linker = Linker.nativeLinker();
+				SymbolLookup libc = linker.defaultLookup();
+				Linker.Option errno = Linker.Option.captureCallState("errno");
+				open = linker.downcallHandle(libc.find("open").orElseThrow(),
+						FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT),
+						errno, Linker.Option.firstVariadicArg(2));
+				ioctl = linker.downcallHandle(libc.find("ioctl").orElseThrow(),
+						FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT),
+						errno, Linker.Option.firstVariadicArg(2));
+				close = linker.downcallHandle(libc.find("close").orElseThrow(),
+						FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+			} catch (RuntimeException e) {
+				System.err.println("Cloning files is not available: " + e.getMessage());
+				open = ioctl = close = null;
+			}
+		}
+		OPEN = open;
+		IOCTL = ioctl;
+		CLOSE = close;
+	}
+
+	/**
+	 * @return Whether cloning can be attempted on this system.
+	 */
+	public static boolean isAvailable() {
+		return OPEN != null;
+	}
+
+	/**
+	 * Clones a file, replacing the target if it exists.
+	 *
+	 * @param source The file to clone.
+	 * @param target The clone to create.
+	 * @return Whether the file got cloned, or false if the file system doesn't support cloning these files.
+	 * If false, a partially created target may remain.
+	 * @throws IOException If a file could not be opened or cloning failed for another reason.
+	 */
+	public static boolean clone(@NotNull Path source, @NotNull Path target) throws IOException {
+		if (!isAvailable()) return false;
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment state = arena.allocate(CAPTURE);
+			int in = open(arena, state, source, O_RDONLY | O_CLOEXEC);
+			try {
+				int out = open(arena, state, target, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC);
+				try {
+					if ((int) IOCTL.invokeExact(state, out, FICLONE, in) == 0) return true;
+					int error = (int) ERRNO.get(state, 0L);
+					for (int unsupported : UNSUPPORTED) {
+						if (error == unsupported) return false;
+					}
+					throw new IOException("Cloning " + source + " to " + target + " failed with errno " + error);
+				} finally {
+					int ignored = (int) CLOSE.invokeExact(out);
+				}
+			} finally {
+				int ignored = (int) CLOSE.invokeExact(in);
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Opens a file.
+	 *
+	 * @param arena The arena to allocate the path in.
+	 * @param state The memory errno gets captured in.
+	 * @param file  The file to open.
+	 * @param flags The flags to open the file with.
+	 * @return The file descriptor.
+	 * @throws Throwable If the file could not be opened.
+	 */
+	private static int open(@NotNull Arena arena, @NotNull MemorySegment state, @NotNull Path file, int flags) throws Throwable {
+		int fd = (int) OPEN.invokeExact(state, arena.allocateFrom(file.toAbsolutePath().toString()), flags, 0644);
+		if (fd < 0) throw new IOException("Could not open " + file + ", errno " + (int) ERRNO.get(state, 0L));
+		return fd;
+	}
+}
@@ -0,0 +1,452 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only journal of a run, stored in the target root, which allows an interrupted run to be resumed.
+ * It records every planned, started and completed operation as well as every directory which has been scanned completely,
+ * together with its modification time and the subdirectories found in it.
+ * A directory only gets skipped on resume while its modification time is unchanged,
+ * so files added to it since then still get found.
+ * Records get written immediately, but only get forced to disk in batches by a background thread.
+ * Every record carries a checksum, so a record torn by a crash gets detected and cut off before the journal is continued.
+ */
+public class RunJournal implements Closeable {
+
+	/**
+	 * The name of the journal file in the target root.
+	 */
+	public static final String FILE_NAME = ".transcopy-journal";
+	/**
+	 * How often pending records get forced to disk.
+	 */
+	private static final long FLUSH_INTERVAL_MILLIS = 250;
+	/**
+	 * The record type of the header containing the source and target root.
+	 */
+	private static final byte HEADER = 0;
+	/**
+	 * The record type of a planned operation.
+	 */
+	private static final byte PLANNED = 1;
+	/**
+	 * The record type of a started operation.
+	 */
+	private static final byte STARTED = 2;
+	/**
+	 * The record type of a completed operation.
+	 */
+	private static final byte COMPLETED = 3;
+	/**
+	 * The record type of a completely scanned directory.
+	 */
+	private static final byte SCANNED = 4;
+	/**
+	 * The modification time recorded for directories whose time could not be read, which never counts as unchanged.
+	 */
+	private static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+	/**
+	 * The location of the journal file.
+	 */
+	private final Path file;
+	/**
+	 * The source root of the run.
+	 */
+	private final Path sourceRoot;
+	/**
+	 * The target root of the run.
+	 */
+	private final Path targetRoot;
+	/**
+	 * The channel records get appended to.
+	 */
+	private final FileChannel channel;
+	/**
+	 * The operations of the previous run which have not been completed, keyed by the absolute path of their source.
+	 */
+	private final Map<String, Operation> unfinished = new LinkedHashMap<>();
+	/**
+	 * All directories the previous run scanned completely, keyed by their relative path.
+	 */
+	private final Map<String, Scan> scanned = new HashMap<>();
+	/**
+	 * The directories currently being scanned.
+	 */
+	private final ConcurrentHashMap<Path, Scan> children = new ConcurrentHashMap<>();
+	/**
+	 * The number of operations planned in this run which have not been completed yet.
+	 */
+	private final LongAdder outstanding = new LongAdder();
+	/**
+	 * The thread forcing the records to disk.
+	 */
+	private final Thread flusher;
+
+	/**
+	 * Whether records have been written since the last flush.
+	 */
+	private volatile boolean dirty = false;
+
+	/**
+	 * Opens the journal in the target root.
+	 * If a journal of a run with the same source and target exists, it gets loaded to resume that run,
+	 * otherwise a new journal gets started.
+	 *
+	 * @param sourceRoot The source directory of the run.
+	 * @param targetRoot The target directory of the run.
+	 * @throws IOException If the journal could not be read or created.
+	 */
+	public RunJournal(@NotNull Path sourceRoot, @NotNull Path targetRoot) throws IOException {
+		this.file = targetRoot.resolve(FILE_NAME);
+		this.sourceRoot = sourceRoot;
+		this.targetRoot = targetRoot;
+		long end = Files.exists(file) ? load(sourceRoot, targetRoot) : -1;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (end >= 0) {
+			// Cut off a torn record, otherwise the records appended after it couldn't be read by the next resume.
+			channel.truncate(end);
+			channel.position(end);
+		} else {
+			channel.truncate(0);
+			append(HEADER, sourceRoot.toAbsolutePath().toString(), targetRoot.toAbsolutePath().toString());
+		}
+		flusher = Thread.ofPlatform().name("Journal").daemon().start(this::flush);
+	}
+
+	/**
+	 * Reads a previous journal.
+	 * Reading stops at the first incomplete or corrupt record.
+	 *
+	 * @param sourceRoot The source directory of the current run.
+	 * @param targetRoot The target directory of the current run.
+	 * @return The end of the last valid record, or -1 if the journal belongs to a run with different directories.
+	 * @throws IOException If the journal could not be read.
+	 */
+	private long load(@NotNull Path sourceRoot, @NotNull Path targetRoot) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			Record header = read(buffer);
+			if (header == null || header.type() != HEADER
+					|| !header.fields().get(0).equals(sourceRoot.toAbsolutePath().toString())
+					|| !header.fields().get(1).equals(targetRoot.toAbsolutePath().toString())) return -1;
+			long end = buffer.position();
+			Record record;
+			while ((record = read(buffer)) != null) {
+				end = buffer.position();
+				List<String> fields = record.fields();
+				switch (record.type()) {
+					case PLANNED -> unfinished.put(fields.get(0), new Operation(Kind.valueOf(fields.get(1)), restore(fields.get(0)), restore(fields.get(2)), false));
+					case STARTED -> unfinished.computeIfPresent(fields.get(0), (key, operation) -> operation.asStarted());
+					case COMPLETED -> unfinished.remove(fields.get(0));
+					case SCANNED -> scanned.put(fields.get(0), new Scan(Long.parseLong(fields.get(1)), fields.subList(2, fields.size())));
+				}
+			}
+			return end;
+		}
+	}
+
+	/**
+	 * Converts an absolute path recorded in the journal back into a path below the roots as given to this run,
+	 * which may be relative.
+	 *
+	 * @param recorded The recorded path.
+	 * @return The path below the source or target root, or the recorded path if it is below neither.
+	 */
+	@NotNull
+	private Path restore(@NotNull String recorded) {
+		Path path = Path.of(recorded);
+		Path target = targetRoot.toAbsolutePath();
+		Path source = sourceRoot.toAbsolutePath();
+		if (path.startsWith(target)) return targetRoot.resolve(target.relativize(path));
+		if (path.startsWith(source)) return sourceRoot.resolve(source.relativize(path));
+		return path;
+	}
+
+	/**
+	 * Converts a path into the key it gets recorded under, which is its absolute path,
+	 * so records match independent of how the roots were given.
+	 *
+	 * @param path The path.
+	 * @return The key.
+	 */
+	@NotNull
+	private static String key(@NotNull Path path) {
+		return path.toAbsolutePath().toString();
+	}
+
+	/**
+	 * Reads a single record.
+	 *
+	 * @param buffer The buffer to read from.
+	 * @return The record, or null if no valid record is left.
+	 */
+	@Nullable
+	private static Record read(@NotNull ByteBuffer buffer) {
+		try {
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (length < 1 || length > buffer.remaining()) return null;
+			ByteBuffer payload = buffer.slice(buffer.position(), length);
+			buffer.position(buffer.position() + length);
+			CRC32C crc = new CRC32C();
+			crc.update(payload.duplicate());
+			if ((int) crc.getValue() != checksum) return null;
+			byte type = payload.get();
+			List<String> fields = new ArrayList<>();
+			while (payload.hasRemaining()) {
+				byte[] field = new byte[payload.getShort() & 0xFFFF];
+				payload.get(field);
+				fields.add(new String(field, StandardCharsets.UTF_8));
+			}
+			return new Record(type, fields);
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Appends a record to the journal.
+	 *
+	 * @param type   The type of the record.
+	 * @param fields The fields of the record.
+	 */
+	private void append(byte type, @NotNull String... fields) {
+		int length = 1;
+		byte[][] encoded = new byte[fields.length][];
+		for (int i = 0; i < fields.length; i++) {
+			encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+			length += Short.BYTES + encoded[i].length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + length);
+		record.putInt(length).putInt(0).put(type);
+		for (byte[] field : encoded) record.putShort((short) field.length).put(field);
+		CRC32C crc = new CRC32C();
+		crc.update(record.slice(2 * Integer.BYTES, length));
+		record.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+		synchronized (channel) {
+			try {
+				while (record.hasRemaining()) channel.write(record);
+			} catch (IOException e) {
+				System.err.println("Could not write to " + file + ": " + e.getMessage());
+			}
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Forces the written records to disk in regular intervals.
+	 */
+	private void flush() {
+		while (channel.isOpen()) {
+			try {
+				Thread.sleep(FLUSH_INTERVAL_MILLIS);
+				if (dirty) {
+					dirty = false;
+					channel.force(false);
+				}
+			} catch (InterruptedException ignored) {
+			} catch (IOException e) {
+				if (channel.isOpen()) System.err.println("Could not flush " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return The operations the previous run didn't complete, in the order they were planned.
+	 */
+	@NotNull
+	public Collection<Operation> getUnfinished() {
+		return Collections.unmodifiableCollection(unfinished.values());
+	}
+
+	/**
+	 * Returns whether the previous run planned an operation for the given source which it didn't complete.
+	 * Such sources get resumed from the journal and must not be planned again during the traversal.
+	 *
+	 * @param source The source of the operation.
+	 * @return Whether an unfinished operation exists for the source.
+	 */
+	public boolean isUnfinished(@NotNull Path source) {
+		return unfinished.containsKey(key(source));
+	}
+
+	/**
+	 * Returns the subdirectories of a directory which the previous run already scanned completely,
+	 * meaning the files in it don't need to be looked at again.
+	 * If the directory got modified since then, it has to be scanned again.
+	 *
+	 * @param directory The directory in the source.
+	 * @return The subdirectories, or null if the directory has to be scanned.
+	 */
+	@Nullable
+	public List<Path> getScannedSubdirectories(@NotNull Path directory) {
+		Scan scan = scanned.get(sourceRoot.relativize(directory).toString());
+		if (scan == null || scan.modified() == UNKNOWN_TIME || scan.modified() != getModifiedTime(directory)) return null;
+		return scan.subdirectories().stream().map(directory::resolve).toList();
+	}
+
+	/**
+	 * Records that a directory is going to be scanned.
+	 * Its modification time gets read before it is listed,
+	 * so a file added during the listing makes the next resume list it again.
+	 *
+	 * @param directory The directory.
+	 */
+	public void scanning(@NotNull Path directory) {
+		children.put(directory, new Scan(getModifiedTime(directory), Collections.synchronizedList(new ArrayList<>())));
+		Path parent = directory.getParent();
+		if (parent != null) {
+			Scan siblings = children.get(parent);
+			if (siblings != null) siblings.subdirectories().add(directory.getFileName().toString());
+		}
+	}
+
+	/**
+	 * Reads the modification time of a directory.
+	 *
+	 * @param directory The directory.
+	 * @return The modification time in nanoseconds, or {@link #UNKNOWN_TIME} if it could not be read.
+	 */
+	private static long getModifiedTime(@NotNull Path directory) {
+		try {
+			return Files.getLastModifiedTime(directory).to(TimeUnit.NANOSECONDS);
+		} catch (IOException e) {
+			return UNKNOWN_TIME;
+		}
+	}
+
+	/**
+	 * Records that all files of a directory have been planned.
+	 *
+	 * @param directory The directory.
+	 */
+	public void scanned(@NotNull Path directory) {
+		Scan scan = children.remove(directory);
+		List<String> fields = new ArrayList<>();
+		fields.add(sourceRoot.relativize(directory).toString());
+		fields.add(String.valueOf(scan == null ? UNKNOWN_TIME : scan.modified()));
+		if (scan != null) {
+			synchronized (scan.subdirectories()) {
+				fields.addAll(scan.subdirectories());
+			}
+		}
+		append(SCANNED, fields.toArray(String[]::new));
+	}
+
+	/**
+	 * Records that an operation has been queued.
+	 *
+	 * @param kind   The kind of the operation.
+	 * @param source The source of the operation.
+	 * @param target The target of the operation.
+	 */
+	public void planned(@NotNull Kind kind, @NotNull Path source, @NotNull Path target) {
+		outstanding.increment();
+		append(PLANNED, key(source), kind.name(), key(target));
+	}
+
+	/**
+	 * Records that an operation has been started, meaning it might have left behind partial files.
+	 *
+	 * @param source The source of the operation.
+	 */
+	public void started(@NotNull Path source) {
+		append(STARTED, key(source));
+	}
+
+	/**
+	 * Records that an operation has been completed.
+	 *
+	 * @param source The source of the operation.
+	 */
+	public void completed(@NotNull Path source) {
+		append(COMPLETED, key(source));
+		outstanding.decrement();
+	}
+
+	/**
+	 * Closes the journal.
+	 * If every operation planned in this run has been completed, the journal gets deleted,
+	 * otherwise it is kept so the next run retries the remaining operations.
+	 *
+	 * @throws IOException If the journal could not be closed or deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (channel) {
+			channel.force(false);
+			channel.close();
+		}
+		flusher.interrupt();
+		if (outstanding.sum() == 0) Files.deleteIfExists(file);
+	}
+
+	/**
+	 * The kinds of operations recorded.
+	 */
+	public enum Kind {
+		/**
+		 * A file gets moved to the target.
+		 */
+		MOVE,
+		/**
+		 * A video gets encoded.
+		 */
+		VIDEO
+	}
+
+	/**
+	 * A single record as read from the journal file.
+	 *
+	 * @param type   The type of the record.
+	 * @param fields The fields of the record.
+	 */
+	private record Record(byte type, @NotNull List<String> fields) {
+	}
+
+	/**
+	 * A directory which has been scanned.
+	 *
+	 * @param modified       The modification time of the directory in nanoseconds before it got listed.
+	 * @param subdirectories The names of the subdirectories found in it.
+	 */
+	private record Scan(long modified, @NotNull List<String> subdirectories) {
+	}
+
+	/**
+	 * An operation recorded in the journal.
+	 *
+	 * @param kind    The kind of the operation.
+	 * @param source  The source of the operation.
+	 * @param target  The target of the operation.
+	 * @param started Whether the operation had been started, meaning partial files may exist.
+	 */
+	public record Operation(@NotNull Kind kind, @NotNull Path source, @NotNull Path target, boolean started) {
+
+		/**
+		 * @return A copy of this operation marked as started.
+		 */
+		@NotNull
+		private Operation asStarted() {
+			return new Operation(kind, source, target, true);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects what a run would do without doing it, so its cost can be estimated beforehand.
+ * Encoding times get estimated from the probed durations of the videos and the speed of previous runs,
+ * videos which haven't been probed yet get estimated from their size.
+ */
+public class RunPlan {
+
+	/**
+	 * Counter for files which would be ignored.
+	 */
+	private final LongAdder ignored = new LongAdder();
+	/**
+	 * Counter for files which would be moved.
+	 */
+	private final LongAdder moves = new LongAdder();
+	/**
+	 * The bytes of the files which would be moved.
+	 */
+	private final LongAdder moveBytes = new LongAdder();
+	/**
+	 * Counter for sources which would be deleted as the target or a duplicate already exists.
+	 */
+	private final LongAdder deletes = new LongAdder();
+	/**
+	 * The bytes of the sources which would be deleted.
+	 */
+	private final LongAdder deleteBytes = new LongAdder();
+	/**
+	 * Counter for sources which would be kept as the target has different content.
+	 */
+	private final LongAdder kept = new LongAdder();
+	/**
+	 * Counter for targets which would be deleted as a file with the jpeg extension replaces them.
+	 */
+	private final LongAdder aliases = new LongAdder();
+	/**
+	 * Counter for targets which would be encoded again.
+	 */
+	private final LongAdder renewals = new LongAdder();
+	/**
+	 * Counter for videos which would be encoded.
+	 */
+	private final LongAdder encodes = new LongAdder();
+	/**
+	 * Counter for videos which would only be remuxed.
+	 */
+	private final LongAdder remuxes = new LongAdder();
+	/**
+	 * The bytes of the sources of all videos.
+	 */
+	private final LongAdder videoBytes = new LongAdder();
+	/**
+	 * The bytes of the encoded videos which have been probed.
+	 */
+	private final LongAdder probedBytes = new LongAdder();
+	/**
+	 * The duration of the encoded videos which have been probed.
+	 */
+	private final DoubleAdder probedSeconds = new DoubleAdder();
+	/**
+	 * The bytes of the encoded videos which haven't been probed yet.
+	 */
+	private final LongAdder unprobedBytes = new LongAdder();
+	/**
+	 * Counter for the encoded videos which haven't been probed yet.
+	 */
+	private final LongAdder unprobed = new LongAdder();
+	/**
+	 * The estimated size of all encoded and remuxed videos.
+	 */
+	private final LongAdder outputBytes = new LongAdder();
+	/**
+	 * The estimated size of the largest encoded or remuxed video.
+	 */
+	private final AtomicLong largestOutput = new AtomicLong();
+
+	/**
+	 * Records a file which would be ignored.
+	 */
+	public void ignore() {
+		ignored.increment();
+	}
+
+	/**
+	 * Records a file which would be moved.
+	 *
+	 * @param bytes The size of the file.
+	 */
+	public void move(long bytes) {
+		moves.increment();
+		moveBytes.add(bytes);
+	}
+
+	/**
+	 * Records a source which would be deleted.
+	 *
+	 * @param bytes The size of the source.
+	 */
+	public void delete(long bytes) {
+		deletes.increment();
+		deleteBytes.add(bytes);
+	}
+
+	/**
+	 * Records a source which would be kept as the target has different content.
+	 */
+	public void keep() {
+		kept.increment();
+	}
+
+	/**
+	 * Records a target which would be deleted as it's replaced by a file with the jpeg extension.
+	 */
+	public void deleteAlias() {
+		aliases.increment();
+	}
+
+	/**
+	 * Records a target which would be encoded again.
+	 */
+	public void renew() {
+		renewals.increment();
+	}
+
+	/**
+	 * Records a video which would be encoded or remuxed.
+	 *
+	 * @param bytes    The size of the source.
+	 * @param probe    The cached probe result of the source, or null if it hasn't been probed yet.
+	 * @param remux    Whether the video would only be remuxed.
+	 * @param estimate The estimated size of the output.
+	 */
+	public void encode(long bytes, @Nullable ProbeCache.Probe probe, boolean remux, long estimate) {
+		videoBytes.add(bytes);
+		outputBytes.add(estimate);
+		largestOutput.accumulateAndGet(estimate, Math::max);
+		if (remux) {
+			remuxes.increment();
+			return;
+		}
+		encodes.increment();
+		if (probe != null && probe.duration() > 0) {
+			probedBytes.add(bytes);
+			probedSeconds.add(probe.duration());
+		} else {
+			unprobed.increment();
+			unprobedBytes.add(bytes);
+		}
+	}
+
+	/**
+	 * @return The estimated duration of all videos to encode, using the bitrate of the probed videos for the others.
+	 */
+	public double getEncodeSeconds() {
+		double seconds = probedSeconds.sum();
+		long probed = probedBytes.sum();
+		if (probed > 0) seconds += unprobedBytes.sum() * (seconds / probed);
+		return seconds;
+	}
+
+	/**
+	 * Summarizes the plan.
+	 *
+	 * @param speed      The seconds of video each job encodes per second, or 0 if unknown.
+	 * @param jobs       The number of videos encoded at once.
+	 * @param direct     Whether videos get encoded directly into the target.
+	 * @param tempFree   The usable space of the temporary directory.
+	 * @param targetFree The usable space of the target.
+	 * @param rename     Whether moved files only get renamed, as source and target are on the same volume.
+	 * @return The summary.
+	 */
+	@NotNull
+	public String getSummary(double speed, int jobs, boolean direct, long tempFree, long targetFree, boolean rename) {
+		StringBuilder summary = new StringBuilder("Plan:");
+		summary.append(String.format("%n  %d files to move (%d MiB)", moves.sum(), moveBytes.sum() >> 20));
+		summary.append(String.format("%n  %d videos to encode and %d to remux (%d MiB)", encodes.sum(), remuxes.sum(), videoBytes.sum() >> 20));
+		summary.append(String.format("%n  %d sources to delete as they already exist (%d MiB), %d kept as the target differs",
+				deletes.sum(), deleteBytes.sum() >> 20, kept.sum()));
+		summary.append(String.format("%n  %d targets to encode again, %d jpg files replaced by jpeg files, %d files ignored",
+				renewals.sum(), aliases.sum(), ignored.sum()));
+		double seconds = getEncodeSeconds();
+		if (encodes.sum() == 0) summary.append(String.format("%n  Nothing to encode"));
+		else if (seconds <= 0 || speed <= 0)
+			summary.append(String.format("%n  Encoding time unknown, as no video has been probed or encoded on this machine yet"));
+		else {
+			double wall = seconds / speed / jobs;
+			summary.append(String.format("%n  %.1f hours of video to encode at %.2fx realtime with %d jobs, taking about %.1f hours%s",
+					seconds / 3600, speed, jobs, wall / 3600,
+					unprobed.sum() == 0 ? "" : String.format(" (%d videos not probed yet, estimated from their size)", unprobed.sum())));
+		}
+		long targetNeeded = outputBytes.sum() + (rename ? 0 : moveBytes.sum());
+		summary.append(String.format("%n  Target needs about %d MiB, %d MiB free%s", targetNeeded >> 20, targetFree >> 20,
+				targetNeeded > targetFree ? " - NOT ENOUGH SPACE" : ""));
+		if (!direct && encodes.sum() + remuxes.sum() > 0) {
+			long tempNeeded = largestOutput.get() * Math.min(jobs, encodes.sum() + remuxes.sum());
+			summary.append(String.format("%n  Temporary directory needs at least %d MiB, %d MiB free%s", tempNeeded >> 20, tempFree >> 20,
+					tempNeeded > tempFree ? " - NOT ENOUGH SPACE" : ""));
+		}
+		return summary.toString();
+	}
+}
@@ -0,0 +1,217 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Encodes a long video as multiple segments in parallel, which afterward get joined by the concat demuxer of FFMpeg.
+ * The segments get offered to other workers, but the thread starting the encoding works on them as well
+ * and only waits for segments already being encoded by someone else,
+ * so it never waits for a segment stuck in a queue behind itself.
+ */
+public class SegmentedEncoding {
+
+	/**
+	 * The directory the segments get written to.
+	 */
+	private final Path directory;
+	/**
+	 * The segments of the video.
+	 */
+	private final List<Segment> segments = new ArrayList<>();
+	/**
+	 * Gets set once a segment failed, so remaining segments get skipped.
+	 */
+	private final AtomicBoolean failed = new AtomicBoolean(false);
+
+	/**
+	 * Creates a new encoding.
+	 *
+	 * @param output   The file the joined video gets written to, next to which the segments get stored.
+	 * @param duration The duration of the video in seconds.
+	 * @param length   The duration of each segment in seconds.
+	 */
+	public SegmentedEncoding(@NotNull Path output, double duration, double length) {
+		this.directory = getDirectory(output);
+		int count = (int) Math.ceil(duration / length);
+		for (int i = 0; i < count; i++) {
+			double start = i * length;
+			// The last segment has no end, so nothing gets lost if the probed duration was too short.
+			segments.add(new Segment(directory.resolve(String.format("%05d.mp4", i)), start, i == count - 1 ? -1 : length));
+		}
+	}
+
+	/**
+	 * Returns the directory the segments of an output get stored in.
+	 *
+	 * @param output The file the joined video gets written to.
+	 * @return The directory next to the output.
+	 */
+	@NotNull
+	public static Path getDirectory(@NotNull Path output) {
+		return output.resolveSibling("." + output.getFileName() + ".segments");
+	}
+
+	/**
+	 * @return The number of segments.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Encodes all segments, offering them to other workers and encoding all segments nobody else took.
+	 *
+	 * @param helpers Offers a task to other workers without blocking, returning whether it was accepted.
+	 * @param encoder Encodes a single segment.
+	 * @throws IOException If a segment could not be encoded.
+	 */
+	public void encode(@NotNull Predicate<Runnable> helpers, @NotNull Encoder encoder) throws IOException {
+		Files.createDirectories(directory);
+		for (Segment segment : segments) segment.encoder = encoder;
+		// The first segment is always encoded by this thread, so it isn't offered.
+		for (int i = 1; i < segments.size(); i++) helpers.test(segments.get(i));
+		for (Segment segment : segments) segment.run();
+		IOException failure = null;
+		for (Segment segment : segments) {
+			try {
+				segment.result.join();
+			} catch (CompletionException e) {
+				IOException cause = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+				if (failure == null) failure = cause;
+				else failure.addSuppressed(cause);
+			}
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Writes the list of segments as read by the concat demuxer.
+	 *
+	 * @return The list file.
+	 * @throws IOException If the list could not be written.
+	 */
+	@NotNull
+	public Path writeList() throws IOException {
+		Path list = directory.resolve("segments.txt");
+		List<String> lines = new ArrayList<>(segments.size());
+		for (Segment segment : segments) {
+			lines.add("file '" + segment.file.toAbsolutePath().toString().replace("'", "'\\''") + "'");
+		}
+		Files.write(list, lines, StandardCharsets.UTF_8);
+		return list;
+	}
+
+	/**
+	 * Deletes the segments and the list.
+	 *
+	 * @param directory The directory containing the segments.
+	 * @throws IOException If the directory could not be listed.
+	 */
+	public static void delete(@NotNull Path directory) throws IOException {
+		if (!Files.exists(directory)) return;
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Deletes the segments and the list of this encoding.
+	 *
+	 * @throws IOException If the directory could not be listed.
+	 */
+	public void delete() throws IOException {
+		delete(directory);
+	}
+
+	/**
+	 * Encodes a part of a video.
+	 */
+	@FunctionalInterface
+	public interface Encoder {
+
+		/**
+		 * Encodes the video stream of a part of a video.
+		 *
+		 * @param start  The start of the part in seconds.
+		 * @param length The length of the part in seconds, or a negative value to encode until the end.
+		 * @param output The file to write to.
+		 * @throws IOException If the part could not be encoded.
+		 */
+		void encode(double start, double length, @NotNull Path output) throws IOException;
+	}
+
+	/**
+	 * A single segment, which gets encoded by whichever thread runs it first.
+	 */
+	private class Segment implements Runnable {
+
+		/**
+		 * The file the segment gets written to.
+		 */
+		private final Path file;
+		/**
+		 * The start of the segment in seconds.
+		 */
+		private final double start;
+		/**
+		 * The length of the segment in seconds, or a negative value for the last segment.
+		 */
+		private final double length;
+		/**
+		 * Gets set by the thread encoding this segment.
+		 */
+		private final AtomicBoolean claimed = new AtomicBoolean(false);
+		/**
+		 * Gets completed once the segment has been encoded.
+		 */
+		private final CompletableFuture<Void> result = new CompletableFuture<>();
+		/**
+		 * Encodes the segment, set before it gets offered to anyone.
+		 */
+		private volatile Encoder encoder;
+
+		private Segment(@NotNull Path file, double start, double length) {
+			this.file = file;
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public void run() {
+			if (!claimed.compareAndSet(false, true)) return;
+			if (failed.get()) {
+				result.completeExceptionally(new IOException("Skipped after another segment failed"));
+				return;
+			}
+			try {
+				encoder.encode(start, length, file);
+				result.complete(null);
+			} catch (IOException | RuntimeException e) {
+				failed.set(true);
+				result.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -4,32 +4,30 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * An executor service who uses a priority queue to prefer callables over runnables,
+ * An executor service who uses a queue with two lanes to prefer callables over runnables,
  * so that futures get returned as fast as possible, while normal runnables run later.
+ * Within each lane tasks run in the order they were added.
+ * Other orders can be used by supplying a {@link PriorityPolicy}.
  */
 public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorService implements ExecutorService {
 
 	/**
-	 * The priority queue used for the tasks.
+	 * The queue used for the tasks, sorted into lanes by the priority policy.
 	 */
-	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>(16, ((o1, o2) -> {
-		assert o1 != null && o2 != null;
-		if (o1 instanceof FutureTask<?>) {
-			if (o2 instanceof FutureTask<?>) return 0;
-			else return 1;
-		} else {
-			if (o2 instanceof FutureTask<?>) return -1;
-			else return 0;
-		}
-	}));
+	private final LaneQueue<Runnable> queue;
 	/**
 	 * The thread actually executing the tasks.
 	 */
 	private final Thread worker;
+	/**
+	 * The free slots in the queue, or null if the queue is unbounded.
+	 */
+	private final Semaphore slots;
 	/**
 	 * The lock that gets used to allow other threads to wait for the termination of this Executor.
 	 */
@@ -38,6 +36,10 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 	 * The condition other threads actually wait for.
 	 */
 	private final Condition terminationCondition = terminationLock.newCondition();
+	/**
+	 * Counter for the tasks which failed.
+	 */
+	private final LongAdder failed = new LongAdder();
 
 	/**
 	 * This boolean gets set when this Executor shall shut down in a normal manner,
@@ -58,7 +60,9 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 	 * Create a new Executor with default parameters.
 	 */
 	public SingleThreadFuturePriorityExecutorService() {
+		queue = createQueue(PriorityPolicy.FUTURES_FIRST);
 		worker = new Thread(new Worker());
+		slots = null;
 		worker.start();
 	}
 
@@ -69,10 +73,48 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 	 * @param threadFactory The thread factory that should be used to create the worker thread.
 	 */
 	public SingleThreadFuturePriorityExecutorService(ThreadFactory threadFactory) {
+		queue = createQueue(PriorityPolicy.FUTURES_FIRST);
+		worker = threadFactory.newThread(new Worker());
+		slots = null;
+		worker.start();
+	}
+
+	/**
+	 * Creates a new Executor with the given thread factory and a bounded queue.
+	 * When the queue is full, adding a task blocks until the worker took another task.
+	 *
+	 * @param threadFactory The thread factory that should be used to create the worker thread.
+	 * @param capacity      The number of tasks which may wait in the queue.
+	 */
+	public SingleThreadFuturePriorityExecutorService(ThreadFactory threadFactory, int capacity) {
+		this(threadFactory, capacity, PriorityPolicy.FUTURES_FIRST);
+	}
+
+	/**
+	 * Creates a new Executor with the given thread factory, a bounded queue and a custom order of tasks.
+	 *
+	 * @param threadFactory The thread factory that should be used to create the worker thread.
+	 * @param capacity      The number of tasks which may wait in the queue.
+	 * @param policy        The policy deciding the order in which tasks get executed.
+	 */
+	public SingleThreadFuturePriorityExecutorService(ThreadFactory threadFactory, int capacity, @NotNull PriorityPolicy policy) {
+		queue = createQueue(policy);
 		worker = threadFactory.newThread(new Worker());
+		slots = new Semaphore(capacity);
 		worker.start();
 	}
 
+	/**
+	 * Creates the queue for the tasks.
+	 *
+	 * @param policy The policy deciding the order of the tasks.
+	 * @return The queue.
+	 */
+	@NotNull
+	private static LaneQueue<Runnable> createQueue(@NotNull PriorityPolicy policy) {
+		return new LaneQueue<>(policy.getLanes(), policy::getLane, policy::getUrgentLane, policy.getAgingNanos());
+	}
+
 	/**
 	 * Shuts down this Executor in a clean manner, meaning no more tasks get accepted,
 	 * but all remaining tasks get executed and the thread then shuts down.
@@ -80,6 +122,7 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 	@Override
 	public void shutdown() {
 		shutdown = true;
+		queue.close();
 	}
 
 	/**
@@ -92,8 +135,9 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 	public List<Runnable> shutdownNow() {
 		shutdown = true;
 		forceShutdown = true;
+		queue.close();
 		worker.interrupt();
-		return queue.stream().toList();
+		return queue.snapshot();
 	}
 
 	/**
@@ -118,17 +162,38 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 
 	@Override
 	public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
-		if (terminated) return true;
+		long remaining = unit.toNanos(timeout);
 		terminationLock.lock();
 		try {
-			return terminationCondition.await(timeout, unit);
+			while (!terminated) {
+				if (remaining <= 0) return false;
+				remaining = terminationCondition.awaitNanos(remaining);
+			}
+			return true;
 		} finally {
 			terminationLock.unlock();
 		}
 	}
 
+	/**
+	 * Returns the number of tasks waiting to be executed.
+	 *
+	 * @return The current length of the queue.
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The number of tasks which failed with an exception.
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
 	/**
 	 * Adds a new runnable to this task.
+	 * If the queue is bounded and full, this waits until space is available.
 	 *
 	 * @param command The runnable to add.
 	 * @throws RejectedExecutionException When the task couldn't be added, likely because the Executor was shut down.
@@ -137,7 +202,26 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 	public void execute(@NotNull Runnable command) throws RejectedExecutionException {
 		if (shutdown || forceShutdown || terminated)
 			throw new RejectedExecutionException("This executor has been shut down");
-		queue.put(command);
+		if (slots != null) {
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for space in the queue", e);
+			}
+		}
+		queue.offer(command);
+	}
+
+	/**
+	 * Takes a task out of the queue, freeing its slot.
+	 *
+	 * @param task The task taken, may be null.
+	 * @return The task.
+	 */
+	private Runnable taken(Runnable task) {
+		if (task != null && slots != null) slots.release();
+		return task;
 	}
 
 	/**
@@ -147,28 +231,26 @@ public class SingleThreadFuturePriorityExecutorService extends AbstractExecutorS
 
 		@Override
 		public void run() {
-			while (!shutdown) {
+			while (!forceShutdown) {
+				Runnable task;
 				try {
-					queue.take().run();
+					task = taken(queue.take());
 				} catch (InterruptedException e) {
 					// This should only be reached if the thread gets interrupted in a force shutdown.
 					assert forceShutdown : e;
+					continue;
+				}
+				// The queue only returns nothing once it got closed by a shutdown and all tasks have been executed.
+				if (task == null) break;
+				try {
+					task.run();
 				} catch (RuntimeException e) {
+					failed.increment();
 					e.printStackTrace();
 				}
 			}
-			while (!forceShutdown && !queue.isEmpty()) {
-				Runnable task = queue.poll();
-				if (task != null) {
-					try {
-						task.run();
-					} catch (RuntimeException e) {
-						e.printStackTrace();
-					}
-				}
-			}
-			terminated = true;
 			terminationLock.lock();
+			terminated = true;
 			terminationCondition.signalAll();
 			terminationLock.unlock();
 		}
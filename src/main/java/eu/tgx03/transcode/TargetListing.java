@@ -0,0 +1,228 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the contents of the directories of the target, so checking whether a file exists doesn't need to ask the file system.
+ * Each directory gets listed once when it's first looked at and then kept up to date as files get added and removed,
+ * which saves a round trip for every check on network shares.
+ * Changes made to the target by other programs while running aren't noticed.
+ */
+public class TargetListing {
+
+	/**
+	 * The snapshots of all directories looked at so far.
+	 */
+	private final Map<Path, Snapshot> snapshots = new ConcurrentHashMap<>();
+	/**
+	 * Counter for the directories which got listed.
+	 */
+	private final LongAdder listings = new LongAdder();
+	/**
+	 * Counter for the lookups answered from the snapshots.
+	 */
+	private final LongAdder lookups = new LongAdder();
+
+	/**
+	 * Looks up a file.
+	 *
+	 * @param file The file.
+	 * @return The file as it was listed, or null if it doesn't exist.
+	 * @throws IOException If the directory of the file could not be listed.
+	 */
+	@Nullable
+	public Listed get(@NotNull Path file) throws IOException {
+		lookups.increment();
+		Map<String, Listed> entries = getSnapshot(file.getParent()).load();
+		return entries == null ? null : entries.get(file.getFileName().toString());
+	}
+
+	/**
+	 * Checks whether a file exists.
+	 *
+	 * @param file The file.
+	 * @return Whether the file exists.
+	 * @throws IOException If the directory of the file could not be listed.
+	 */
+	public boolean exists(@NotNull Path file) throws IOException {
+		return get(file) != null;
+	}
+
+	/**
+	 * Checks whether a directory exists, which also lists it as its files are about to be looked at.
+	 *
+	 * @param directory The directory.
+	 * @return Whether the directory exists.
+	 * @throws IOException If the directory could not be listed.
+	 */
+	public boolean isDirectory(@NotNull Path directory) throws IOException {
+		lookups.increment();
+		return getSnapshot(directory).load() != null;
+	}
+
+	/**
+	 * Records that a file has been added or replaced.
+	 *
+	 * @param file     The file.
+	 * @param size     The size of the file.
+	 * @param modified The time the file was last modified in milliseconds.
+	 */
+	public void added(@NotNull Path file, long size, long modified) {
+		Snapshot snapshot = snapshots.get(file.getParent());
+		if (snapshot != null) snapshot.put(file.getFileName().toString(), new Listed(size, modified, false));
+	}
+
+	/**
+	 * Records that a file has been deleted.
+	 *
+	 * @param file The file.
+	 */
+	public void removed(@NotNull Path file) {
+		Snapshot snapshot = snapshots.get(file.getParent());
+		if (snapshot != null) snapshot.remove(file.getFileName().toString());
+	}
+
+	/**
+	 * Records that a directory and all of its missing parents have been created.
+	 *
+	 * @param directory The directory.
+	 */
+	public void createdDirectories(@NotNull Path directory) {
+		for (Path current = directory; current != null; current = current.getParent()) {
+			Snapshot snapshot = snapshots.get(current);
+			if (snapshot != null) snapshot.created();
+			Snapshot parent = current.getParent() == null ? null : snapshots.get(current.getParent());
+			if (parent != null) parent.put(current.getFileName().toString(), new Listed(0, 0, true));
+		}
+	}
+
+	/**
+	 * @param directory The directory.
+	 * @return The snapshot of the directory, which may not have been loaded yet.
+	 */
+	@NotNull
+	private Snapshot getSnapshot(@NotNull Path directory) {
+		return snapshots.computeIfAbsent(directory, Snapshot::new);
+	}
+
+	/**
+	 * @return A summary of how many checks were answered without asking the file system.
+	 */
+	@NotNull
+	public String getStatistics() {
+		long listed = listings.sum();
+		long looked = lookups.sum();
+		return String.format("Target listing: %d directories listed for %d lookups, saving %d round trips",
+				listed, looked, Math.max(0, looked - listed));
+	}
+
+	/**
+	 * A file or directory as it was listed.
+	 *
+	 * @param size      The size of the file.
+	 * @param modified  The time the file was last modified in milliseconds.
+	 * @param directory Whether it's a directory.
+	 */
+	public record Listed(long size, long modified, boolean directory) {
+	}
+
+	/**
+	 * The contents of a single directory, which get listed when they are needed first.
+	 */
+	private class Snapshot {
+
+		/**
+		 * The directory.
+		 */
+		private final Path directory;
+		/**
+		 * Whether the directory has been listed.
+		 */
+		private volatile boolean loaded = false;
+		/**
+		 * The files of the directory by name, or null if it doesn't exist.
+		 */
+		private volatile Map<String, Listed> entries;
+
+		/**
+		 * @param directory The directory.
+		 */
+		private Snapshot(@NotNull Path directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * Lists the directory if that hasn't happened yet.
+		 * The attributes get read while walking the directory, which on some platforms are part of the listing itself.
+		 *
+		 * @return The files of the directory by name, or null if it doesn't exist.
+		 * @throws IOException If the directory could not be listed.
+		 */
+		@Nullable
+		private Map<String, Listed> load() throws IOException {
+			if (loaded) return entries;
+			synchronized (this) {
+				if (loaded) return entries;
+				listings.increment();
+				Map<String, Listed> listed = new ConcurrentHashMap<>();
+				try {
+					Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+						@Override
+						public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+							// Only gets called for the directory itself if it's a file.
+							if (file.equals(directory)) throw new NotDirectoryException(directory.toString());
+							listed.put(file.getFileName().toString(), new Listed(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isDirectory()));
+							return FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+							if (file.equals(directory)) throw e;
+							return FileVisitResult.CONTINUE;
+						}
+					});
+					entries = listed;
+				} catch (NoSuchFileException | NotDirectoryException e) {
+					entries = null;
+				}
+				loaded = true;
+				return entries;
+			}
+		}
+
+		/**
+		 * Adds or replaces a file, if the directory has been listed already.
+		 *
+		 * @param name    The name of the file.
+		 * @param listing The file.
+		 */
+		private synchronized void put(@NotNull String name, @NotNull Listed listing) {
+			if (entries != null) entries.put(name, listing);
+		}
+
+		/**
+		 * Removes a file, if the directory has been listed already.
+		 *
+		 * @param name The name of the file.
+		 */
+		private synchronized void remove(@NotNull String name) {
+			if (entries != null) entries.remove(name);
+		}
+
+		/**
+		 * Marks the directory as existing and empty if it was listed as missing.
+		 */
+		private synchronized void created() {
+			if (loaded && entries == null) entries = new ConcurrentHashMap<>();
+		}
+	}
+}
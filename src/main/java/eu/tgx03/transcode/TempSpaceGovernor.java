@@ -0,0 +1,171 @@
+package eu.tgx03.transcode;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps encodings from filling up the temporary directory while the copier can't keep up moving the results away.
+ * Every encoding reserves the estimated size of its output before it starts,
+ * and only gets admitted if the temporary volume keeps a minimum of free space afterward.
+ * Otherwise it waits until finished encodings have been copied to the target.
+ */
+public class TempSpaceGovernor {
+
+	/**
+	 * How long to wait before checking the free space again, in case space got freed by something else.
+	 */
+	private static final long RECHECK_MILLIS = 1000;
+
+	/**
+	 * The file store of the temporary directory.
+	 */
+	private final FileStore store;
+	/**
+	 * The number of bytes which have to stay free.
+	 */
+	private final long minimum;
+	/**
+	 * The lock guarding the counters.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Gets signalled whenever space got freed.
+	 */
+	private final Condition freed = lock.newCondition();
+
+	/**
+	 * The estimated bytes of the encodings currently running, which haven't been written yet.
+	 */
+	private long reserved = 0;
+	/**
+	 * The bytes of finished encodings waiting in the temporary directory to be copied.
+	 */
+	private long pending = 0;
+	/**
+	 * The highest number of bytes waiting to be copied at once.
+	 */
+	private long peakPending = 0;
+	/**
+	 * How often an encoding had to wait for space.
+	 */
+	private long pauses = 0;
+	/**
+	 * The total time encodings spent waiting for space.
+	 */
+	private long pausedNanos = 0;
+
+	/**
+	 * Creates a new governor.
+	 *
+	 * @param temp    The temporary directory encodings get written to.
+	 * @param minimum The number of bytes which have to stay free on the temporary volume.
+	 * @throws IOException If the volume of the temporary directory could not be determined.
+	 */
+	public TempSpaceGovernor(@NotNull Path temp, long minimum) throws IOException {
+		this.store = Files.getFileStore(temp);
+		this.minimum = minimum;
+	}
+
+	/**
+	 * Reserves space for an encoding, waiting until enough space is free.
+	 * If nothing is running or waiting to be copied, the encoding gets admitted anyway,
+	 * as no space would get freed by waiting.
+	 *
+	 * @param estimate The estimated size of the output.
+	 * @throws InterruptedException If the thread got interrupted while waiting.
+	 */
+	public void admit(long estimate) throws InterruptedException {
+		lock.lock();
+		try {
+			long start = 0;
+			while ((reserved > 0 || pending > 0) && getUsableSpace() - reserved - estimate < minimum) {
+				if (start == 0) {
+					start = System.nanoTime();
+					pauses++;
+				}
+				freed.await(RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			if (start != 0) pausedNanos += System.nanoTime() - start;
+			reserved += estimate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the reservation of an encoding once it has finished or failed.
+	 *
+	 * @param estimate The estimate the space was reserved with.
+	 * @param written  The actual size of the output now waiting to be copied, or 0 if the encoding failed.
+	 */
+	public void encoded(long estimate, long written) {
+		lock.lock();
+		try {
+			reserved -= estimate;
+			pending += written;
+			peakPending = Math.max(peakPending, pending);
+			freed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Informs waiting encodings that an output has been moved out of the temporary directory.
+	 *
+	 * @param bytes The size of the output.
+	 */
+	public void drained(long bytes) {
+		lock.lock();
+		try {
+			pending = Math.max(0, pending - bytes);
+			freed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The usable space of the temporary volume, or 0 if it could not be determined.
+	 */
+	private long getUsableSpace() {
+		try {
+			return store.getUsableSpace();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The bytes of finished encodings waiting to be copied.
+	 */
+	public long getPending() {
+		lock.lock();
+		try {
+			return pending;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return A summary of how much the temporary directory was used and how long encodings had to wait.
+	 */
+	@NotNull
+	public String getStatistics() {
+		lock.lock();
+		try {
+			return String.format("Temporary directory: %d MiB peak waiting to be copied, %d pauses totalling %.1fs",
+					peakPending >> 20, pauses, pausedNanos / 1e9);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,23 +1,31 @@
 package eu.tgx03.transcode;
 
-import com.github.kokorin.jaffree.StreamType;
 import com.github.kokorin.jaffree.ffmpeg.*;
-import com.github.kokorin.jaffree.ffprobe.FFprobe;
-import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
-import com.github.kokorin.jaffree.ffprobe.Stream;
 import me.tongfei.progressbar.ProgressBar;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.net.URLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.concurrent.atomic.LongAdder;
 
 /**
@@ -27,21 +35,91 @@ import java.util.concurrent.atomic.LongAdder;
  */
 public class TransCopy {
 
+	/*
+	 * The files flow through the following stages, each of which has a bounded queue,
+	 * so a fast traversal blocks instead of queueing up every file of the source in memory:
+	 * TRAVERSER -> CLASSIFIER_STAGE -> ENCODER -> COPIER, with images going from CLASSIFIER_STAGE to COPIER directly.
+	 */
+
+	/**
+	 * The stage which classifies the files found by the traversal and checks them for duplicates.
+	 * Gets created once the command line has been parsed.
+	 */
+	private static BoundedStage CLASSIFIER_STAGE;
 	/**
 	 * The queue for file copy operations.
-	 * Used as parallel copy usually takes longer than serial.
+	 * Copies between the same pair of devices run serially by default,
+	 * as parallel copy usually takes longer than serial on spinning disks and network shares.
+	 * Gets created once the command line has been parsed.
 	 */
-	private static final ExecutorService COPIER = new SingleThreadFuturePriorityExecutorService();
+	private static CopyScheduler COPIER;
 	/**
 	 * A queue for video encodings.
-	 * Used as parallel encoding usually doesn't make much sense,
-	 * and when using NVENC for example not even possible.
+	 * Only runs one encoding at a time by default, as hardware encoders like NVENC
+	 * only allow a few sessions, which additionally get limited by {@link #SESSIONS}.
+	 * Gets created once the command line has been parsed.
+	 */
+	private static BoundedStage ENCODER;
+	/**
+	 * The workers helping with the segments of videos split by {@code -chunk}.
+	 * They are separate from {@link #ENCODER}, whose workers are all busy with their own videos when
+	 * only one video gets encoded at a time, so a segmented video would otherwise still be encoded serially.
+	 * There are as many workers as the video encoder has sessions, at most one per processor,
+	 * and each segment additionally takes a session of {@link #SESSIONS} while it runs.
+	 * So the segments don't multiply the threads of the encodings, they share the threads of all jobs, see {@link #segmentThreads}.
+	 * Null if videos don't get split.
+	 */
+	@Nullable
+	private static BoundedStage SEGMENTER;
+	/**
+	 * The session limits of the video encoders.
+	 */
+	private static EncoderSessions SESSIONS;
+	/**
+	 * The thread pool running FFProbe.
+	 * Probes are short process launches which can run in parallel,
+	 * so they get their own pool instead of waiting behind copies.
+	 * Gets created once the command line has been parsed.
+	 */
+	private static MeteredThreadPoolExecutor PROBER;
+	/**
+	 * Holds back encodings while the temporary directory is running out of space.
+	 * Gets created once the command line has been parsed.
+	 */
+	private static TempSpaceGovernor TEMP_SPACE;
+	/**
+	 * The hardware decoding matching the encoder, or null if videos get decoded in software.
+	 * Gets determined once the encoder is known.
+	 */
+	private static HardwareDecoding HARDWARE_DECODING;
+	/**
+	 * Counter for the videos which only got remuxed instead of encoded.
+	 */
+	private static final LongAdder REMUXED = new LongAdder();
+	/**
+	 * The total duration in seconds of the videos which only got remuxed.
+	 */
+	private static final DoubleAdder REMUXED_SECONDS = new DoubleAdder();
+	/**
+	 * Counter for the videos which could not be probed.
 	 */
-	private static final ExecutorService ENCODER = Executors.newSingleThreadExecutor();
+	private static final LongAdder PROBE_FAILURES = new LongAdder();
+	/**
+	 * The total duration in seconds of the videos which got encoded.
+	 */
+	private static final DoubleAdder ENCODED_SECONDS = new DoubleAdder();
+	/**
+	 * The total time spent encoding the videos counted in {@link #ENCODED_SECONDS}.
+	 */
+	private static final LongAdder ENCODE_NANOS = new LongAdder();
 	/**
 	 * The thread pool used for the threads which traverse the directory.
 	 */
 	private static final ExecutorService TRAVERSER = Executors.newCachedThreadPool(r -> Thread.ofVirtual().unstarted(r));
+	/**
+	 * Determines which files are images and videos.
+	 */
+	private static final FileClassifier CLASSIFIER = new FileClassifier();
 	/**
 	 * Counter for how many tasks exist in total.
 	 */
@@ -50,6 +128,43 @@ public class TransCopy {
 	 * Counter for how many tasks are completed.
 	 */
 	private static final LongAdder TASK_COMPLETED = new LongAdder();
+	/**
+	 * The progress weighted by file size, including the progress reported by running encodings.
+	 */
+	private static final ProgressMetrics METRICS = new ProgressMetrics();
+
+	/**
+	 * The index of all files in the target directory.
+	 * Gets opened once the command line has been parsed.
+	 */
+	private static ContentIndex INDEX;
+	/**
+	 * The journal of this run, which allows resuming it if it gets interrupted.
+	 * Gets opened once the command line has been parsed.
+	 */
+	private static RunJournal JOURNAL;
+	/**
+	 * The engine used to move the files to the target.
+	 * Gets created once the command line has been parsed.
+	 */
+	private static CopyEngine COPY_ENGINE;
+	/**
+	 * The cached contents of the target directories, used instead of checking the target for every file.
+	 */
+	private static final TargetListing LISTING = new TargetListing();
+	/**
+	 * Collects what the run would do when only planning, otherwise null.
+	 */
+	private static RunPlan PLAN;
+	/**
+	 * The server exposing the metrics of this run, or null if disabled.
+	 */
+	private static MetricsServer METRICS_SERVER;
+	/**
+	 * The cache of FFProbe results.
+	 * Gets opened once the command line has been parsed.
+	 */
+	private static ProbeCache PROBES;
 
 	/**
 	 * The source directory to copy the files from.
@@ -63,6 +178,35 @@ public class TransCopy {
 	 * The name of the video encoder to supply to FFMPeg.
 	 */
 	private static String videoEncoder;
+	/**
+	 * The quality settings of the automatically selected encoder as pairs of option and value.
+	 * Explicitly given settings get added afterward and therefore take precedence.
+	 */
+	private static List<String> videoArguments = List.of();
+	/**
+	 * Whether videos should be decoded in hardware: "off", "auto" to match the encoder, or the name of a method.
+	 */
+	private static String hardwareDecoding = "off";
+	/**
+	 * Whether videos which already are efficient enough get remuxed instead of encoded.
+	 */
+	private static boolean passthrough = true;
+	/**
+	 * Whether to only print what the run would do.
+	 */
+	private static boolean plan = false;
+	/**
+	 * The address the metrics get served on as host and port, or null to not serve them.
+	 */
+	private static InetSocketAddress metricsAddress;
+	/**
+	 * The length in seconds of the segments long videos get split into, or 0 to never split videos.
+	 */
+	private static double chunkLength = 0;
+	/**
+	 * The duration in seconds from which videos get split into segments.
+	 */
+	private static double chunkMinimum = 1200;
 	/**
 	 * The quality to use for video encodings.
 	 */
@@ -91,7 +235,79 @@ public class TransCopy {
 	 * The rc setting if used.
 	 */
 	private static String rc;
+	/**
+	 * The directory containing the FFMpeg and FFProbe executables, or null to look them up on the path.
+	 */
+	private static Path ffmpegBinaries;
 	private static String qp;
+	/**
+	 * Whether copies across file systems should be verified.
+	 */
+	private static boolean verify = false;
+	/**
+	 * The fastest way files may get to the target.
+	 */
+	private static CopyEngine.Method linkMode = CopyEngine.Method.RENAME;
+	/**
+	 * The number of FFProbe processes to run in parallel.
+	 */
+	private static int probeThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * The number of probe results to keep in memory.
+	 */
+	private static int probeCacheSize = 10000;
+	/**
+	 * The number of tasks which may wait in the queue of each stage.
+	 */
+	private static int queueCapacity = 1024;
+	/**
+	 * How many copies may run at once between a pair of devices.
+	 */
+	private static int copyConcurrency = 1;
+	/**
+	 * The number of concurrent copies for specific devices, keyed by the name of their file store.
+	 */
+	private static final Map<String, Integer> DEVICE_CONCURRENCY = new HashMap<>();
+	/**
+	 * The order in which copies get executed.
+	 */
+	private static PriorityPolicy copyPriority = PriorityPolicy.FUTURES_LAST;
+	/**
+	 * The number of bytes which have to stay free in the temporary directory when starting an encoding.
+	 */
+	private static long tempMinimum = 2048L << 20;
+	/**
+	 * Whether encodings get written into the target directory directly: "on", "off" or "auto".
+	 */
+	private static String directMode = "off";
+	/**
+	 * The write speed in bytes per second from which the target counts as fast enough to encode into directly.
+	 */
+	private static double directSpeed = 100e6;
+	/**
+	 * Whether encodings get written into the target directory directly instead of the temporary directory.
+	 * Gets determined once the command line has been parsed.
+	 */
+	private static boolean direct = false;
+	/**
+	 * The number of videos to encode in parallel.
+	 */
+	private static int encodeJobs = 1;
+	/**
+	 * The number of threads each encoding may use.
+	 */
+	private static String encodeThreads;
+	/**
+	 * The number of threads each segment of a split video may use.
+	 * The threads of all jobs get divided between the segments which may run at once,
+	 * which are the workers of {@link #SEGMENTER} and the jobs themselves.
+	 * Gets determined once the segmenter has been created.
+	 */
+	private static String segmentThreads;
+	/**
+	 * The maximum number of sessions for specific encoders, keyed by the name of the encoder.
+	 */
+	private static final Map<String, Integer> ENCODER_SESSIONS = new HashMap<>();
 
 	/**
 	 * Copies images and videos from one location to another recursively,
@@ -99,90 +315,285 @@ public class TransCopy {
 	 *
 	 * @param args First argument is the source, second is the target, third is the Handbrake executable and fourth is the name of the Handbrake preset.
 	 */
-	public static void main(@NotNull String @NotNull [] args) throws InterruptedException, ParseException {
+	public static void main(@NotNull String @NotNull [] args) throws InterruptedException, ParseException, IOException {
 		parseCMD(args);
+		if (plan) {
+			// A dry run must not run test encodings, so the encoder selected by a previous run gets assumed.
+			// Without one, the encoding time stays unknown and the number of jobs unlimited by sessions.
+			if (videoEncoder == null || videoEncoder.equals("auto")) {
+				String cached = new EncoderSelector(ffmpegBinaries).getCachedEncoder();
+				videoEncoder = cached == null ? "auto" : cached;
+			}
+			plan();
+			return;
+		}
+		if (videoEncoder == null || videoEncoder.equals("auto")) {
+			EncoderSelector.Profile profile = new EncoderSelector(ffmpegBinaries).select();
+			videoEncoder = profile.encoder();
+			videoArguments = profile.arguments();
+		}
+		if (!hardwareDecoding.equals("off")) {
+			EncoderSelector.Capabilities capabilities = new EncoderSelector(ffmpegBinaries).getCapabilities();
+			HARDWARE_DECODING = HardwareDecoding.select(hardwareDecoding, videoEncoder, capabilities.hwaccels());
+		}
+		INDEX = new ContentIndex(targetPath);
+		JOURNAL = new RunJournal(sourcePath, targetPath);
+		PROBES = new ProbeCache(targetPath, probeCacheSize, ffmpegBinaries);
+		COPY_ENGINE = new CopyEngine(verify, linkMode);
+		direct = switch (directMode) {
+			case "on" -> true;
+			case "auto" -> {
+				double speed = CopyEngine.measureWriteSpeed(targetPath, 256L << 20);
+				System.out.printf("Target writes at %.1f MB/s, encoding %s%n", speed / 1e6, speed >= directSpeed ? "directly into the target" : "into the temporary directory");
+				yield speed >= directSpeed;
+			}
+			default -> false;
+		};
+		COPIER = new CopyScheduler(copyConcurrency, DEVICE_CONCURRENCY, queueCapacity, copyPriority);
+		SESSIONS = new EncoderSessions(ENCODER_SESSIONS);
+		TEMP_SPACE = new TempSpaceGovernor(VideoOperation.TEMP, tempMinimum);
+		PROBER = new MeteredThreadPoolExecutor("Prober", probeThreads, 4 * probeThreads);
+		ENCODER = new BoundedStage("Encoder", Math.min(encodeJobs, SESSIONS.getLimit(videoEncoder)), queueCapacity, false);
+		if (chunkLength > 0) {
+			int segmenters = Math.min(SESSIONS.getLimit(videoEncoder), Runtime.getRuntime().availableProcessors());
+			SEGMENTER = new BoundedStage("Segmenter", segmenters, queueCapacity, false);
+			segmentThreads = String.valueOf(Math.max(1, getThreadBudget() / (segmenters + encodeJobs)));
+		}
+		CLASSIFIER_STAGE = new BoundedStage("Classifier", 2 * Runtime.getRuntime().availableProcessors(), queueCapacity, true);
+		if (metricsAddress != null) startMetricsServer();
 
-		Phaser rootPhaser = new Phaser(2);
-		traverseDirectory(sourcePath.toFile(), rootPhaser);
 		Thread progressBar = new Thread(TransCopy::drawProgressBar, "ProgressBar");
 		progressBar.setDaemon(true);
 		progressBar.start();
-		rootPhaser.arriveAndAwaitAdvance();
+		resume();
+		new DirectoryWalker(TRAVERSER, new SourceVisitor()).walk(sourcePath);
 		TRAVERSER.shutdown();
-		ENCODER.shutdown();
-		ENCODER.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		CLASSIFIER_STAGE.close();
+		System.out.println(CLASSIFIER.getStatistics());
+		System.out.println(CLASSIFIER_STAGE.getStatistics());
+		ENCODER.close();
+		System.out.println(ENCODER.getStatistics());
+		if (SEGMENTER != null) {
+			SEGMENTER.close();
+			System.out.println(SEGMENTER.getStatistics());
+		}
+		System.out.println(TEMP_SPACE.getStatistics());
+		if (HARDWARE_DECODING != null) System.out.println(HARDWARE_DECODING.getStatistics());
+		printRemuxStatistics();
 		COPIER.shutdown();
 		COPIER.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		PROBER.shutdown();
+		System.out.println(PROBER.getStatistics());
+		System.out.println(LISTING.getStatistics());
+		System.out.println(COPY_ENGINE.getStatistics());
+		if (ENCODED_SECONDS.sum() > 0)
+			new EncoderSelector(ffmpegBinaries).recordSpeed(videoEncoder, ENCODED_SECONDS.sum(), ENCODE_NANOS.sum());
+		INDEX.close();
+		PROBES.close();
+		JOURNAL.close();
+		if (METRICS_SERVER != null) METRICS_SERVER.stop();
 	}
 
 	/**
-	 * Goes through a directory, recursively creating new jobs for subdirectories and files.
+	 * Starts serving the metrics of the pipeline, which get read from its counters on every scrape.
 	 *
-	 * @param directory    The current directory to scan.
-	 * @param parentPhaser The phaser to register and afterward deregister to/from.
+	 * @throws IOException If the server could not be started.
 	 */
-	private static void traverseDirectory(@NotNull File directory, @NotNull Phaser parentPhaser) {
-		try {
-			assert directory.isDirectory();
-			Phaser childPhaser = new Phaser(parentPhaser);
-			for (File file : directory.listFiles()) {
-				if (file.isDirectory()) {
-					childPhaser.register();
-					TASK_COUNT.increment();
-					TRAVERSER.execute(() -> traverseDirectory(file, childPhaser));
-				} else handleFile(file);
-			}
-		} finally {
-			parentPhaser.arrive();
-			TASK_COMPLETED.increment();
+	private static void startMetricsServer() throws IOException {
+		METRICS_SERVER = new MetricsServer(metricsAddress)
+				.gauge("transcopy_tasks", "Tasks planned and completed", "state=\"planned\"", TASK_COUNT::sum)
+				.gauge("transcopy_tasks", "Tasks planned and completed", "state=\"completed\"", TASK_COMPLETED::sum)
+				.gauge("transcopy_work_bytes", "Bytes of files planned and completed, including the encoded share of running encodings", "state=\"planned\"", METRICS::getPlanned)
+				.gauge("transcopy_work_bytes", "Bytes of files planned and completed, including the encoded share of running encodings", "state=\"completed\"", METRICS::getCompleted)
+				.gauge("transcopy_queue_depth", "Tasks waiting in each stage", "stage=\"classifier\"", CLASSIFIER_STAGE::getQueueDepth)
+				.gauge("transcopy_queue_depth", "Tasks waiting in each stage", "stage=\"encoder\"", ENCODER::getQueueDepth)
+				.gauge("transcopy_queue_depth", "Tasks waiting in each stage", "stage=\"copier\"", COPIER::getQueueSize)
+				.gauge("transcopy_queue_depth", "Tasks waiting in each stage", "stage=\"prober\"", PROBER::getQueueDepth)
+				.counter("transcopy_errors_total", "Tasks which failed in each stage", "stage=\"classifier\"", CLASSIFIER_STAGE::getFailed)
+				.counter("transcopy_errors_total", "Tasks which failed in each stage", "stage=\"encoder\"", ENCODER::getFailed)
+				.counter("transcopy_errors_total", "Tasks which failed in each stage", "stage=\"copier\"", COPIER::getFailed)
+				.counter("transcopy_errors_total", "Tasks which failed in each stage", "stage=\"prober\"", PROBE_FAILURES::sum)
+				.gauge("transcopy_encodings_running", "Encodings currently running", "", () -> METRICS.getRunning().size())
+				.gauge("transcopy_encode_fps", "Frames encoded per second by all running encodings", "", METRICS::getFps)
+				.counter("transcopy_encoded_video_seconds_total", "Duration of the encoded videos", "", ENCODED_SECONDS::sum)
+				.counter("transcopy_encode_seconds_total", "Time spent encoding videos", "", () -> ENCODE_NANOS.sum() / 1e9)
+				.counter("transcopy_remuxed_total", "Videos remuxed instead of encoded", "", REMUXED::sum)
+				.counter("transcopy_probes_total", "Probes completed", "", PROBER::getCompleted)
+				.counter("transcopy_probe_wait_seconds_total", "Time probes spent waiting for a thread", "", () -> PROBER.getWaitNanos() / 1e9)
+				.counter("transcopy_probe_seconds_total", "Time spent probing", "", () -> PROBER.getServiceNanos() / 1e9)
+				.gauge("transcopy_temp_pending_bytes", "Bytes of encoded videos waiting in the temporary directory", "", TEMP_SPACE::getPending);
+		for (CopyEngine.Method method : CopyEngine.Method.values()) {
+			String label = "method=\"" + method.name().toLowerCase(Locale.ROOT) + "\"";
+			METRICS_SERVER.counter("transcopy_transferred_files_total", "Files moved to the target by each method", label, () -> COPY_ENGINE.getCount(method))
+					.counter("transcopy_transferred_bytes_total", "Bytes moved to the target by each method", label, () -> COPY_ENGINE.getBytes(method));
+		}
+		System.out.println("Serving metrics on http://" + metricsAddress.getHostString() + ":" + metricsAddress.getPort() + "/metrics");
+	}
+
+	/**
+	 * Traverses the source and makes the same decisions as a run would, but only records them and prints a summary.
+	 * Nothing gets written to the source or the target, and videos only count as probed if their probe is cached.
+	 *
+	 * @throws IOException          If the target could not be read.
+	 * @throws InterruptedException If the thread got interrupted while waiting for the traversal.
+	 */
+	private static void plan() throws IOException, InterruptedException {
+		PLAN = new RunPlan();
+		INDEX = new ContentIndex(targetPath, true);
+		if (Files.exists(targetPath.resolve(ProbeCache.FILE_NAME)))
+			PROBES = new ProbeCache(targetPath, probeCacheSize, ffmpegBinaries, true);
+		SESSIONS = new EncoderSessions(ENCODER_SESSIONS);
+		CLASSIFIER_STAGE = new BoundedStage("Classifier", 2 * Runtime.getRuntime().availableProcessors(), queueCapacity, true);
+		new DirectoryWalker(TRAVERSER, (file, attributes) -> CLASSIFIER_STAGE.execute(() -> planFile(file, attributes))).walk(sourcePath);
+		TRAVERSER.shutdown();
+		CLASSIFIER_STAGE.close();
+
+		Path existing = targetPath.toAbsolutePath();
+		while (!Files.exists(existing)) existing = existing.getParent();
+		FileStore target = Files.getFileStore(existing);
+		double speed = new EncoderSelector(ffmpegBinaries).getHistoricalSpeed(videoEncoder);
+		int jobs = Math.min(encodeJobs, SESSIONS.getLimit(videoEncoder));
+		System.out.println(PLAN.getSummary(speed, jobs, directMode.equals("on"),
+				Files.getFileStore(VideoOperation.TEMP).getUsableSpace(), target.getUsableSpace(),
+				linkMode != CopyEngine.Method.COPY && target.equals(Files.getFileStore(sourcePath))));
+		if (PROBES != null) PROBES.close();
+	}
+
+	/**
+	 * Decides what would happen to a file and records it in the plan.
+	 *
+	 * @param source     The file.
+	 * @param attributes The attributes of the file as read during the traversal.
+	 */
+	private static void planFile(@NotNull Path source, @NotNull BasicFileAttributes attributes) {
+		Path target = targetPath.resolve(sourcePath.relativize(source));
+		switch (CLASSIFIER.classify(source)) {
+			case OTHER -> PLAN.ignore();
+			case IMAGE -> {
+				if (!new MoveOperation(source, target, attributes.size()).deleteSourceIfExists()) PLAN.move(attributes.size());
+			}
+			case VIDEO -> {
+				VideoOperation op = new VideoOperation(source, target, attributes.size());
+				if (!op.deleteSourceIfExists()) op.plan(attributes.size());
+			}
+		}
+	}
+
+	/**
+	 * Queues all operations an interrupted previous run didn't complete.
+	 * Started operations may have left behind partial files, which get deleted first.
+	 * Operations whose source doesn't exist anymore had been completed without being recorded.
+	 */
+	private static void resume() {
+		for (RunJournal.Operation operation : JOURNAL.getUnfinished()) {
+			Path source = operation.source();
+			Path target = operation.target();
+			try {
+				switch (operation.kind()) {
+					case MOVE -> {
+						if (!Files.exists(source)) {
+							if (LISTING.exists(target)) INDEX.add(targetPath.relativize(target), null);
+							continue;
+						}
+						if (operation.started()) {
+							Files.deleteIfExists(CopyEngine.getPartFile(target));
+							Files.deleteIfExists(target);
+						}
+						System.out.println("Resuming copy of " + targetPath.relativize(target));
+						long size = Files.size(source);
+						TASK_COUNT.increment();
+						METRICS.plan(size);
+						JOURNAL.planned(RunJournal.Kind.MOVE, source, target);
+						new MoveOperation(source, target, size).schedule();
+					}
+					case VIDEO -> {
+						if (!Files.exists(source)) continue;
+						if (operation.started()) {
+							Files.deleteIfExists(VideoOperation.getTempFile(target));
+							Files.deleteIfExists(CopyEngine.getPartFile(target));
+							SegmentedEncoding.delete(SegmentedEncoding.getDirectory(VideoOperation.getTempFile(target)));
+							SegmentedEncoding.delete(SegmentedEncoding.getDirectory(CopyEngine.getPartFile(target)));
+						}
+						System.out.println("Resuming encoding of " + targetPath.relativize(target));
+						TASK_COUNT.add(2);
+						long size = Files.size(source);
+						METRICS.plan(size);
+						JOURNAL.planned(RunJournal.Kind.VIDEO, source, target);
+						ENCODER.execute(new VideoOperation(source, target, size));
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Could not resume " + source + ": " + e.getMessage());
+			}
 		}
 	}
 
 	/**
 	 * Handles a specific file and either creates a copy or video job for it.
 	 *
-	 * @param file The file to copy.
+	 * @param source     The file to copy.
+	 * @param attributes The attributes of the file as read during the traversal.
 	 */
-	private static void handleFile(@NotNull File file) {
-		assert !file.isDirectory();
+	private static void handleFile(@NotNull Path source, @NotNull BasicFileAttributes attributes) {
+		assert !attributes.isDirectory();
+		if (JOURNAL.isUnfinished(source)) return;
 		TASK_COUNT.increment();
 
 		// Determine the type of file.
-		String mimeType = URLConnection.guessContentTypeFromName(file.getName());
-		if (mimeType == null) return;
-		mimeType = mimeType.split("/")[0];
+		Events.Classify classify = new Events.Classify();
+		classify.begin();
+		FileClassifier.Kind kind = CLASSIFIER.classify(source);
+		if (classify.shouldCommit()) {
+			classify.file = source.toString();
+			classify.kind = kind.name();
+			classify.commit();
+		}
 
 		// Calculate the target path from the source path.
-		Path source = file.toPath();
 		Path relativePath = sourcePath.relativize(source);
 		Path target = targetPath.resolve(relativePath);
 
-		switch (mimeType) {
-			case "image" -> {
-				MoveOperation op = new MoveOperation(source, target);
+		switch (kind) {
+			case OTHER -> TASK_COMPLETED.increment();
+			case IMAGE -> {
+				MoveOperation op = new MoveOperation(source, target, attributes.size());
 				if (op.deleteSourceIfExists()) TASK_COMPLETED.increment();
-				else COPIER.execute(op);
+				else {
+					METRICS.plan(attributes.size());
+					JOURNAL.planned(RunJournal.Kind.MOVE, source, op.getTarget());
+					op.schedule();
+				}
 			}
-			case "video" -> {
-				VideoOperation op = new VideoOperation(source, target);
+			case VIDEO -> {
+				VideoOperation op = new VideoOperation(source, target, attributes.size());
 				if (op.deleteSourceIfExists()) TASK_COMPLETED.increment();
-				else ENCODER.execute(op);
+				else {
+					METRICS.plan(attributes.size());
+					JOURNAL.planned(RunJournal.Kind.VIDEO, source, op.getTarget());
+					ENCODER.execute(op);
+				}
 			}
 		}
 	}
 
 	/**
 	 * Creates a progress bar on System.out
-	 * For this it gets the completed tasks from each thread-pool and divides it by the total
-	 * task count of all thread-pools.
-	 * The task count doesn't seem to be the most stable method, so it varies a bit.
+	 * The progress is measured in MiB of the planned files instead of their number,
+	 * with running encodings counting the share of their source already encoded.
+	 * As files get planned while the source is still being traversed, the total grows for a while.
 	 */
 	private static void drawProgressBar() {
-		try (ProgressBar bar = new ProgressBar("Progress", 1)) {
+		try (ProgressBar bar = new ProgressBar("Progress (MiB)", 1)) {
 			ProgressBar.wrap(System.out, "Progress");
 			while (true) {
-				bar.maxHint(TASK_COUNT.sum());
-				bar.stepTo(TASK_COMPLETED.sum());
+				bar.maxHint(METRICS.getPlanned() >> 20);
+				bar.stepTo(METRICS.getCompleted() >> 20);
+				ProgressMetrics.Encoding slowest = METRICS.getSlowest();
+				bar.setExtraMessage(String.format("tasks %d/%d, classify %d/%d, encode %d/%d, copy %d, probe %d%s",
+						TASK_COMPLETED.sum(), TASK_COUNT.sum(),
+						CLASSIFIER_STAGE.getQueueDepth(), CLASSIFIER_STAGE.getCapacity(),
+						ENCODER.getQueueDepth(), ENCODER.getCapacity(), COPIER.getQueueSize(), PROBER.getQueueDepth(),
+						slowest == null ? "" : ", " + slowest));
 				bar.refresh();
 				try {
 					Thread.sleep(500);
@@ -192,10 +603,42 @@ public class TransCopy {
 		}
 	}
 
+	/**
+	 * Returns the number of threads all encoding jobs may use together.
+	 * If the threads per encoding aren't a positive number, FFMpeg chooses them itself,
+	 * in which case all processors count as the budget.
+	 *
+	 * @return The number of threads.
+	 */
+	private static int getThreadBudget() {
+		try {
+			int threads = Integer.parseInt(encodeThreads);
+			if (threads > 0) return threads * encodeJobs;
+		} catch (NumberFormatException ignored) {
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Prints how many videos got remuxed instead of encoded,
+	 * and how long encoding them would have taken at the speed the other videos were encoded at.
+	 */
+	private static void printRemuxStatistics() {
+		if (REMUXED.sum() == 0) return;
+		double encoded = ENCODED_SECONDS.sum();
+		if (encoded > 0) {
+			double speed = encoded / (ENCODE_NANOS.sum() / 1e9);
+			System.out.printf("Remuxed %d videos instead of encoding them, saving about %.1f minutes of encoding at %.2fx realtime%n",
+					REMUXED.sum(), REMUXED_SECONDS.sum() / speed / 60, speed);
+		} else {
+			System.out.printf("Remuxed %d videos with %.1f minutes of footage instead of encoding them%n", REMUXED.sum(), REMUXED_SECONDS.sum() / 60);
+		}
+	}
+
 	private static void parseCMD(String[] args) throws ParseException {
 		Options options = new Options();
 
-		options.addOption("cv", true, "The name of the video encoder to use");
+		options.addOption("cv", true, "The name of the video encoder to use, or auto to use the fastest one of this machine (default auto)");
 		options.addOption("cq", true, "The quality to use for videos. Must be an integer.");
 		options.addOption("maxrate", true, "The maximum rate to use for constant encoding.");
 		options.addOption("ca", true, "The name of the audio encoder to use");
@@ -206,6 +649,29 @@ public class TransCopy {
 		options.addOption("pa", "The profile to use for audio (optional)");
 		options.addOption("rc", "Specify an rc setting for FFMpeg");
 		options.addOption("qp", "Specify the qp setting for FFMPeg");
+		options.addOption("verify", false, "Verify files copied across file systems by comparing a checksum of their entire content, which reads every copy back");
+		options.addOption("link", true, "The fastest way files may get to the target, either rename, hardlink, reflink or copy, slower ways get used where unsupported (default rename)");
+		options.addOption("probes", true, "The number of FFProbe processes to run in parallel (default: available processors)");
+		options.addOption("probecache", true, "The number of FFProbe results to keep in memory (default 10000)");
+		options.addOption("ffbin", true, "The directory containing the ffmpeg and ffprobe executables (default: look them up on the path)");
+		options.addOption("queue", true, "The number of tasks which may wait in each stage before the previous stage blocks (default 1024)");
+		options.addOption("cj", true, "The number of concurrent copies per pair of source and target device (default 1)");
+		options.addOption("cjd", true, "The number of concurrent copies for a specific device as <file store name>=<count>. May be repeated.");
+		options.addOption("priority", true, "The order of copies: \"baseline\" in order of discovery with futures last, \"futures\" with futures first, or \"size\" for small files first (default baseline)");
+		options.addOption("aging", true, "The seconds a copy may wait before it goes ahead of smaller files with -priority size (default 60)");
+		options.addOption("tempfree", true, "The percentage of free space in the temporary directory below which encoded videos get copied first with -priority size (default 10)");
+		options.addOption("tempmin", true, "The MiB which have to stay free in the temporary directory before another encoding starts (default 2048)");
+		options.addOption("direct", true, "Whether to encode into the target directory instead of the temporary directory: on, off or auto (default off)");
+		options.addOption("directspeed", true, "The target write speed in MB/s from which -direct auto encodes into the target directory (default 100)");
+		options.addOption("hw", true, "Decode videos in hardware: off, auto to match the encoder, or a method like cuda or vaapi (default off)");
+		options.addOption("nopassthrough", false, "Encode all videos, even those already using HEVC or AV1 below the maximum bitrate");
+		options.addOption("metrics", true, "Serve metrics in the Prometheus format on http://[host:]port/metrics, the host defaults to 127.0.0.1");
+		options.addOption("plan", false, "Only print what would be moved, deleted and encoded and how long and how much space it would take, without changing anything");
+		options.addOption("chunk", true, "Split long videos into segments of this many seconds which get encoded in parallel, up to the session limit of the encoder and sharing the threads of all jobs (default 0, disabled)");
+		options.addOption("chunkmin", true, "The duration in seconds from which videos get split into segments (default 1200)");
+		options.addOption("jobs", true, "The number of videos to encode in parallel (default 1)");
+		options.addOption("threads", true, "The number of threads per encoding (default: available processors divided by jobs)");
+		options.addOption("sessions", true, "The maximum number of parallel sessions of an encoder as <encoder>=<count>. May be repeated.");
 
 		CommandLine cmd = new DefaultParser().parse(options, args);
 		videoEncoder = cmd.getOptionValue("cv");
@@ -219,6 +685,56 @@ public class TransCopy {
 		if (cmd.hasOption("pv")) videoPreset = cmd.getOptionValue("pv");
 		if (cmd.hasOption("pa")) audioProfile = cmd.getOptionValue("pa");
 		rc = cmd.getOptionValue("rc");
+		verify = cmd.hasOption("verify");
+		if (cmd.hasOption("link")) linkMode = CopyEngine.Method.valueOf(cmd.getOptionValue("link").toUpperCase(Locale.ROOT));
+		if (cmd.hasOption("probes")) probeThreads = Integer.parseInt(cmd.getOptionValue("probes"));
+		if (cmd.hasOption("probecache")) probeCacheSize = Integer.parseInt(cmd.getOptionValue("probecache"));
+		if (cmd.hasOption("ffbin")) ffmpegBinaries = Path.of(cmd.getOptionValue("ffbin"));
+		if (cmd.hasOption("queue")) queueCapacity = Integer.parseInt(cmd.getOptionValue("queue"));
+		if (cmd.hasOption("cj")) copyConcurrency = Integer.parseInt(cmd.getOptionValue("cj"));
+		if (cmd.hasOption("cjd")) {
+			for (String device : cmd.getOptionValues("cjd")) {
+				int separator = device.lastIndexOf('=');
+				if (separator < 0) throw new ParseException("Device concurrency must be given as <name>=<count>: " + device);
+				DEVICE_CONCURRENCY.put(device.substring(0, separator), Integer.parseInt(device.substring(separator + 1)));
+			}
+		}
+		if (cmd.hasOption("priority")) {
+			long aging = Long.parseLong(cmd.getOptionValue("aging", "60"));
+			double free = Double.parseDouble(cmd.getOptionValue("tempfree", "10")) / 100;
+			try {
+				copyPriority = PriorityPolicy.forName(cmd.getOptionValue("priority"), aging, TimeUnit.SECONDS, VideoOperation.TEMP, free);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException(e.getMessage());
+			}
+		}
+		if (cmd.hasOption("tempmin")) tempMinimum = Long.parseLong(cmd.getOptionValue("tempmin")) << 20;
+		if (cmd.hasOption("direct")) directMode = cmd.getOptionValue("direct");
+		if (!directMode.equals("on") && !directMode.equals("off") && !directMode.equals("auto"))
+			throw new ParseException("Direct mode must be on, off or auto: " + directMode);
+		if (cmd.hasOption("directspeed")) directSpeed = Double.parseDouble(cmd.getOptionValue("directspeed")) * 1e6;
+		if (cmd.hasOption("hw")) hardwareDecoding = cmd.getOptionValue("hw");
+		passthrough = !cmd.hasOption("nopassthrough");
+		plan = cmd.hasOption("plan");
+		if (cmd.hasOption("metrics")) {
+			String address = cmd.getOptionValue("metrics");
+			int colon = address.lastIndexOf(':');
+			metricsAddress = colon < 0 ? new InetSocketAddress("127.0.0.1", Integer.parseInt(address))
+					: new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		}
+		if (cmd.hasOption("chunk")) chunkLength = Double.parseDouble(cmd.getOptionValue("chunk"));
+		if (cmd.hasOption("chunkmin")) chunkMinimum = Double.parseDouble(cmd.getOptionValue("chunkmin"));
+		if (cmd.hasOption("jobs")) encodeJobs = Integer.parseInt(cmd.getOptionValue("jobs"));
+		if (encodeJobs < 1) throw new ParseException("At least one encoding job is required");
+		if (cmd.hasOption("threads")) encodeThreads = cmd.getOptionValue("threads");
+		else encodeThreads = String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / encodeJobs));
+		if (cmd.hasOption("sessions")) {
+			for (String encoder : cmd.getOptionValues("sessions")) {
+				int separator = encoder.lastIndexOf('=');
+				if (separator < 0) throw new ParseException("Encoder sessions must be given as <encoder>=<count>: " + encoder);
+				ENCODER_SESSIONS.put(encoder.substring(0, separator), Integer.parseInt(encoder.substring(separator + 1)));
+			}
+		}
 	}
 
 	/**
@@ -236,6 +752,63 @@ public class TransCopy {
         return path.getParent().resolve(filename);
 	}
 
+	/**
+	 * The visitor which receives the entries of the source directory during the traversal.
+	 */
+	private static class SourceVisitor implements DirectoryWalker.Visitor {
+
+		/**
+		 * The number of files of each directory which are still waiting to be classified,
+		 * plus one as long as the directory is still being listed.
+		 */
+		private final ConcurrentHashMap<Path, AtomicInteger> pending = new ConcurrentHashMap<>();
+
+		@Override
+		public void visitFile(@NotNull Path file, @NotNull BasicFileAttributes attributes) {
+			Path directory = file.getParent();
+			pending.get(directory).incrementAndGet();
+			CLASSIFIER_STAGE.execute(() -> {
+				try {
+					handleFile(file, attributes);
+				} finally {
+					release(directory);
+				}
+			});
+		}
+
+		@Override
+		public void preVisitDirectory(@NotNull Path directory) {
+			TASK_COUNT.increment();
+			pending.put(directory, new AtomicInteger(1));
+			JOURNAL.scanning(directory);
+		}
+
+		@Override
+		public Collection<Path> getKnownSubdirectories(@NotNull Path directory) {
+			return JOURNAL.getScannedSubdirectories(directory);
+		}
+
+		@Override
+		public void postVisitDirectory(@NotNull Path directory) {
+			release(directory);
+		}
+
+		/**
+		 * Marks a file of a directory or the listing itself as done.
+		 * Once everything is done, the directory gets recorded as scanned,
+		 * as only then all of its files have been planned.
+		 *
+		 * @param directory The directory.
+		 */
+		private void release(@NotNull Path directory) {
+			if (pending.get(directory).decrementAndGet() == 0) {
+				pending.remove(directory);
+				JOURNAL.scanned(directory);
+				TASK_COMPLETED.increment();
+			}
+		}
+	}
+
 	/**
 	 * A class representing an action to move a file to another location.
 	 */
@@ -253,17 +826,40 @@ public class TransCopy {
 		 * The Path relative to the parent directories.
 		 */
 		protected final Path relative;
+		/**
+		 * The fingerprint of the original source of the file, as stored in the index.
+		 * Gets calculated when checking for duplicates if not known beforehand,
+		 * and stays null for resumed copies, whose origin is unknown.
+		 */
+		@Nullable
+		protected ContentIndex.Fingerprint origin;
+		/**
+		 * The checksum of the entire original source of the file, as stored in the index.
+		 * Only gets calculated for videos, as only they can't be compared with their target.
+		 */
+		protected long originChecksum = ContentIndex.Entry.UNKNOWN_CHECKSUM;
+		/**
+		 * The modification time of the source in milliseconds when {@link #origin} got calculated from it,
+		 * or -1 if the origin doesn't belong to the source, so copies don't need to hash their source again.
+		 */
+		protected long fingerprinted = -1;
+		/**
+		 * The size of the source when the operation got planned.
+		 */
+		protected final long size;
 
 		/**
 		 * Creates a new Operation to move on file between two locations.
 		 *
 		 * @param source The source path.
 		 * @param target The target path.
+		 * @param size   The size of the source.
 		 */
-		public Operation(@NotNull Path source, @NotNull Path target) {
+		public Operation(@NotNull Path source, @NotNull Path target, long size) {
 			this.source = source;
 			this.target = target;
 			this.relative = targetPath.relativize(target);
+			this.size = size;
 		}
 
 		/**
@@ -273,30 +869,140 @@ public class TransCopy {
 		 * @param source   The source path.
 		 * @param target   The target path.
 		 * @param relative The relative path.
+		 * @param size     The size of the source.
 		 */
-		protected Operation(@NotNull Path source, @NotNull Path target, @NotNull Path relative) {
+		protected Operation(@NotNull Path source, @NotNull Path target, @NotNull Path relative, long size) {
 			this.source = source;
 			this.target = target;
 			this.relative = relative;
+			this.size = size;
 		}
 
 		/**
-		 * Checks if the target already exists and then deletes the source.
+		 * @return The source path.
+		 */
+		@NotNull
+		public Path getSource() {
+			return source;
+		}
+
+		/**
+		 * @return The target path.
+		 */
+		@NotNull
+		public Path getTarget() {
+			return target;
+		}
+
+		/**
+		 * Checks if the target or another file with the same content already exists and then deletes the source.
+		 * If a file with the same name but different content exists, the source gets kept.
 		 *
-		 * @return Whether the target already exists.
+		 * @return Whether the source doesn't need to be copied anymore.
 		 */
 		public boolean deleteSourceIfExists() {
+			Events.DuplicateCheck event = new Events.DuplicateCheck();
+			event.begin();
 			try {
 				checkJPG();
-				if (Files.exists(target)) {
-					System.out.println("Deleting " + relative);
-					Files.delete(source);
-					return true;
+				if (PLAN != null) {
+					// When planning, the source only gets read if a file of the same size exists, as reading every source takes too long.
+					// A copy always has the size of its source, so a target of a different size has different content.
+					TargetListing.Listed listed = LISTING.get(target);
+					if (listed != null && listed.size() != size) {
+						PLAN.keep();
+						event.exists = true;
+						return true;
+					} else if (listed == null && !INDEX.hasOriginOfSize(size)) return false;
 				}
+				BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+				origin = new ContentIndex.Fingerprint(attributes.size(), ContentIndex.hash(source, attributes.size()));
+				fingerprinted = attributes.lastModifiedTime().toMillis();
+				ContentIndex.Entry existing = findExisting(relative);
+				if (existing != null) {
+					if (existing.effectiveOrigin().equals(origin)) deleteSource("Deleting " + relative);
+					else if (PLAN != null) PLAN.keep();
+					else System.out.println("Keeping " + relative + " as the target has different content");
+					event.exists = true;
+				} else event.exists = deleteIfDuplicate();
+				return event.exists;
 			} catch (IOException e) {
 				throw new UncheckedIOException(e);
+			} finally {
+				if (event.shouldCommit()) {
+					event.file = source.toString();
+					event.commit();
+				}
+			}
+		}
+
+		/**
+		 * Looks up a file in the target directory.
+		 * Files in the target which aren't indexed, like those put there by hand or left behind by a crashed run,
+		 * get hashed and added, so they are never mistaken for missing and overwritten.
+		 * Indexed files get checked for modifications, as a destructive action follows a positive result.
+		 * Both get answered by the listing of the target instead of asking the file system for each file.
+		 *
+		 * @param relative The path relative to the target directory.
+		 * @return The entry of the file or null if it doesn't exist.
+		 * @throws IOException If the file could not be read.
+		 */
+		protected static ContentIndex.Entry findExisting(@NotNull Path relative) throws IOException {
+			ContentIndex.Entry entry = INDEX.get(relative);
+			TargetListing.Listed listed = LISTING.get(targetPath.resolve(relative));
+			if (entry == null) {
+				if (listed != null) return INDEX.add(relative, null);
+				else return null;
+			}
+			if (listed == null) {
+				INDEX.remove(relative);
+				return null;
+			}
+			if (listed.size() == entry.size() && listed.modified() == entry.modified()) return entry;
+			else return INDEX.add(relative, entry.origin());
+		}
+
+		/**
+		 * Deletes the source if a file created from the same content exists under a different name.
+		 *
+		 * @return Whether the source was a duplicate and got deleted.
+		 * @throws IOException If the source could not be deleted.
+		 */
+		protected boolean deleteIfDuplicate() throws IOException {
+			Path duplicate = INDEX.findOrigin(origin);
+			if (duplicate == null || duplicate.equals(relative) || !isSameContent(targetPath.resolve(duplicate)))
+				return false;
+			deleteSource("Deleting " + relative + " as duplicate of " + duplicate);
+			return true;
+		}
+
+		/**
+		 * Deletes the source as it already exists in the target, or only records that when planning.
+		 *
+		 * @param message The message to print.
+		 * @throws IOException If the source could not be deleted.
+		 */
+		protected void deleteSource(@NotNull String message) throws IOException {
+			if (PLAN != null) {
+				PLAN.delete(size);
+				return;
+			}
+			System.out.println(message);
+			Files.delete(source);
+		}
+
+		/**
+		 * Verifies that the file found through the index really was created from the source.
+		 *
+		 * @param existing The file in the target directory.
+		 * @return Whether the source doesn't need to be copied.
+		 */
+		protected boolean isSameContent(@NotNull Path existing) {
+			try {
+				return Files.mismatch(source, existing) == -1;
+			} catch (IOException e) {
+				return false;
 			}
-			return false;
 		}
 
 		/**
@@ -305,10 +1011,18 @@ public class TransCopy {
 		private void checkJPG() throws IOException {
 			String name = target.getFileName().toString();
 			String replaced = name.replace(".jpeg", ".jpg");
-			Path potentialDuplicate = target.getParent().resolve(replaced);
-			if (potentialDuplicate.toFile().exists()) {
-				System.out.println("Deleting " + targetPath.relativize(potentialDuplicate));
-				Files.delete(potentialDuplicate);
+			if (replaced.equals(name)) return;
+			Path potentialDuplicate = targetPath.relativize(target.resolveSibling(replaced));
+			// When planning, the listing suffices, as the file would be deleted no matter its content.
+			if (PLAN != null ? LISTING.exists(targetPath.resolve(potentialDuplicate)) : findExisting(potentialDuplicate) != null) {
+				if (PLAN != null) {
+					PLAN.deleteAlias();
+					return;
+				}
+				System.out.println("Deleting " + potentialDuplicate);
+				Files.delete(targetPath.resolve(potentialDuplicate));
+				LISTING.removed(targetPath.resolve(potentialDuplicate));
+				INDEX.remove(potentialDuplicate);
 			}
 		}
 	}
@@ -316,16 +1030,22 @@ public class TransCopy {
 	/**
 	 * A class representing a move operation of a file.
 	 */
-	private static class MoveOperation extends Operation {
+	private static class MoveOperation extends Operation implements CopyScheduler.Transfer {
+
+		/**
+		 * When the operation got handed to the copier, as {@link System#nanoTime()}.
+		 */
+		private long queued;
 
 		/**
 		 * Creates a new operation to move a file from one location to another.
 		 *
 		 * @param source The source file.
 		 * @param target The target file.
+		 * @param size   The size of the source.
 		 */
-		public MoveOperation(@NotNull Path source, @NotNull Path target) {
-			super(source, target);
+		public MoveOperation(@NotNull Path source, @NotNull Path target, long size) {
+			super(source, target, size);
 		}
 
 		/**
@@ -335,28 +1055,80 @@ public class TransCopy {
 		 * @param source   The source file.
 		 * @param target   The target file.
 		 * @param relative The relative path of the file.
+		 * @param size     The size of the source.
+		 */
+		protected MoveOperation(@NotNull Path source, @NotNull Path target, @NotNull Path relative, long size) {
+			super(source, target, relative, size);
+		}
+
+		/**
+		 * Creates a new operation to move a file which was created from another file.
+		 *
+		 * @param source The source file.
+		 * @param target The target file.
+		 * @param size   The size of the source.
+		 * @param origin         The fingerprint of the file the source was created from, or null if unknown.
+		 * @param originChecksum The checksum of the entire file the source was created from.
 		 */
-		protected MoveOperation(@NotNull Path source, @NotNull Path target, @NotNull Path relative) {
-			super(source, target, relative);
+		public MoveOperation(@NotNull Path source, @NotNull Path target, long size, @Nullable ContentIndex.Fingerprint origin, long originChecksum) {
+			super(source, target, size);
+			this.origin = origin;
+			this.originChecksum = originChecksum;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Hands the operation to the copier.
+		 */
+		public void schedule() {
+			queued = System.nanoTime();
+			COPIER.execute(this);
 		}
 
 		@Override
 		public void run() {
+			Events.Move event = new Events.Move();
+			event.queueTime = System.nanoTime() - queued;
+			event.begin();
 			try {
-				if (!Files.exists(target.getParent())) {
+				if (!LISTING.isDirectory(target.getParent())) {
 					Files.createDirectories(target.getParent());
+					LISTING.createdDirectories(target.getParent());
 				}
 				System.out.println("Copying " + relative);
-				int errorCount = 0;
-				do {
-					Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
-					errorCount++;
-				} while (!target.toFile().exists() && errorCount < 5);
-				if (errorCount >= 5) throw new IOException("Could not copy " + relative);
-				else Files.deleteIfExists(source);
+				JOURNAL.started(source);
+				BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+				// The source usually got hashed when checking for duplicates, which only has to be repeated if it changed since.
+				long hash = origin != null && fingerprinted == attributes.lastModifiedTime().toMillis() && origin.size() == attributes.size()
+						? origin.hash() : ContentIndex.hash(source, attributes.size());
+				// Only a target this tool created from the same source may be replaced, anything else must be kept.
+				ContentIndex.Entry existing = INDEX.get(relative);
+				CopyEngine.Result result = COPY_ENGINE.move(source, target, existing != null && origin != null && origin.equals(existing.origin()));
+				if (event.shouldCommit()) {
+					event.source = source.toString();
+					event.target = target.toString();
+					event.bytes = result.bytes();
+					event.method = result.method().name();
+					event.sourceStore = result.from().name();
+					event.targetStore = result.to().name();
+					event.commit();
+				}
+				LISTING.added(target, attributes.size(), attributes.lastModifiedTime().toMillis());
+				if (result.copied())
+					System.out.printf("Copied %s (%.1f MB/s)%n", relative, result.bytesPerSecond() / 1e6);
+				INDEX.put(relative, new ContentIndex.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash, origin, originChecksum));
+				JOURNAL.completed(source);
 			} catch (IOException e) {
 				throw new UncheckedIOException(e);
 			} finally {
+				// Even a failed copy has to be released, otherwise the encoder would wait for it forever.
+				// The planned size gets used, as it matches the reservation even if the source can't be read anymore.
+				if (source.startsWith(VideoOperation.TEMP)) TEMP_SPACE.drained(size);
+				METRICS.complete(size);
 				TASK_COMPLETED.increment();
 			}
 		}
@@ -371,108 +1143,525 @@ public class TransCopy {
 		 * The temporary directory of the system.
 		 */
 		private static final Path TEMP = new File(System.getProperty("java.io.tmpdir")).toPath();
+		/**
+		 * The codecs which don't need to be encoded again.
+		 */
+		private static final Set<String> EFFICIENT_CODECS = Set.of("hevc", "av1");
+		/**
+		 * Gets set once decoding this video in hardware failed, so remaining segments get decoded in software right away.
+		 */
+		private volatile boolean softwareDecoding = false;
 		/**
 		 * The location of the temporary file before the file gets copied to the final location.
 		 * Gets used as this tool was meant to be used to copy files over the network,
 		 * and transcoding over the network is slow.
 		 */
 		private final Path temp;
+		/**
+		 * Receives the progress reported by FFMpeg while the video is being encoded.
+		 */
+		private ProgressMetrics.Encoding progress;
 
 		/**
 		 * Creates a new transcoding operation.
 		 *
 		 * @param source The source file.
 		 * @param target The target file.
+		 * @param size   The size of the source.
 		 */
-		public VideoOperation(@NotNull Path source, @NotNull Path target) {
+		public VideoOperation(@NotNull Path source, @NotNull Path target, long size) {
 			target = setFileExtension(target, ".mp4");
-			super(source, target);
-			temp = TEMP.resolve(target.getFileName());
+			super(source, target, size);
+			temp = getTempFile(target);
+		}
+
+		/**
+		 * Returns the temporary file a video gets encoded into.
+		 * The name is derived from the path relative to the target, as videos with the same name
+		 * from different directories may be encoded at the same time, while a resumed run has to find it again.
+		 *
+		 * @param target The target file.
+		 * @return The temporary file.
+		 */
+		@NotNull
+		private static Path getTempFile(@NotNull Path target) {
+			String relative = targetPath.relativize(target).toString();
+			UUID id = UUID.nameUUIDFromBytes(relative.getBytes(StandardCharsets.UTF_8));
+			return TEMP.resolve(id + "-" + target.getFileName());
 		}
 
 		@Override
 		public void run() {
 			try {
-				System.out.println("Encoding " + targetPath.relativize(target));
+				// Resumed encodings didn't check for duplicates, so the fingerprint of the source is still missing.
+				if (origin == null) origin = ContentIndex.fingerprint(source);
+				ProbeCache.Probe probe = probeSource();
+				progress = METRICS.start(relative, Files.size(source), probe == null ? 0 : probe.duration());
+				boolean remux = canRemux(probe);
+				System.out.println((remux ? "Remuxing " : "Encoding ") + targetPath.relativize(target));
+				JOURNAL.started(source);
+				// When encoding into the target, the output gets written next to it and only renamed once complete.
+				Path output = direct ? CopyEngine.getPartFile(target) : temp;
 
-				FFmpeg encoder = FFmpeg.atPath().addInput(UrlInput.fromPath(source))
-						.addArguments("-movflags", "faststart")
-						.addArguments("-c:v", videoEncoder)
-						.addArguments("-c:a", audioEncoder)
-						.addArguments("-b:a", audioBitrate)
-						.addOutput(UrlOutput.toPath(temp));
-				if (constantQuality != null) encoder.addArguments("-cq:v", constantQuality);
-				if (qp != null) encoder.addArguments("-qp", qp);
-				if (maxRate != null) encoder.addArguments("-maxrate", maxRate);
-				if (videoPreset != null) encoder.addArguments("-preset:v", videoPreset);
-				if (audioProfile != null) encoder.addArguments("-profile:a", audioProfile);
-				if (rc != null) encoder.addArguments("-rc", rc);
-				encoder.execute();
-				COPIER.execute(new MoveOperation(temp, target));
+				// Segments and the joined video exist at the same time, so segmented encodings need twice the space.
+				long estimate = direct ? 0 : estimateOutputSize(probe) * (!remux && isSegmented(probe) ? 2 : 1);
+				try {
+					if (!direct) TEMP_SPACE.admit(estimate);
+					else if (!LISTING.isDirectory(target.getParent())) {
+						Files.createDirectories(target.getParent());
+						LISTING.createdDirectories(target.getParent());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				long written = 0;
+				try {
+					if (!remux || !remux(output, probe)) encode(output, probe);
+					written = Files.size(output);
+					// Reading the entire source once more is cheap compared to encoding it,
+					// and allows later sources with the same content to be deleted as duplicates.
+					originChecksum = ContentIndex.checksum(source);
+				} catch (IOException e) {
+					deleteOutput(output);
+					throw new UncheckedIOException(e);
+				} catch (RuntimeException e) {
+					deleteOutput(output);
+					throw e;
+				} finally {
+					if (!direct) TEMP_SPACE.encoded(estimate, written);
+				}
+				if (direct) publish(output);
+				else {
+					METRICS.plan(written);
+					JOURNAL.planned(RunJournal.Kind.MOVE, temp, target);
+					new MoveOperation(temp, target, written, origin, originChecksum).schedule();
+				}
 				try {
 					Files.delete(this.source);
 				} catch (IOException e) {
 					throw new UncheckedIOException(e);
 				}
+				JOURNAL.completed(source);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			} finally {
+				if (progress != null) progress.finish();
 				TASK_COMPLETED.increment();
 			}
 		}
 
+		/**
+		 * Records in the plan how this video would be handled, using the probe result only if it's cached.
+		 *
+		 * @param bytes The size of the source.
+		 */
+		private void plan(long bytes) {
+			try {
+				ProbeCache.Probe probe = PROBES == null ? null : PROBES.peek(source);
+				PLAN.encode(bytes, probe, canRemux(probe), estimateOutputSize(probe));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * Decides whether the source is efficient enough to be copied into the new container without encoding it.
+		 * This is the case if it already uses an efficient codec, stays below the maximum bitrate
+		 * and doesn't have the broken resolution which would lead to it being renewed later.
+		 *
+		 * @param probe The probe result of the source, or null if it could not be probed.
+		 * @return Whether the source only needs to be remuxed.
+		 */
+		private static boolean canRemux(@Nullable ProbeCache.Probe probe) {
+			if (!passthrough || probe == null || !EFFICIENT_CODECS.contains(probe.codec())) return false;
+			if (probe.height() == 1080 && probe.width() != 1920) return false;
+			try {
+				return maxRate == null || (probe.bitrate() > 0 && probe.bitrate() <= parseBitrate(maxRate));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Copies the streams of the source into an MP4 container without encoding them.
+		 *
+		 * @param output The file to write to.
+		 * @param probe  The probe result of the source.
+		 * @return Whether remuxing succeeded, otherwise the source has to be encoded.
+		 * @throws IOException If a failed output could not be deleted.
+		 */
+		private boolean remux(@NotNull Path output, @NotNull ProbeCache.Probe probe) throws IOException {
+			ProgressMetrics.Encoding.Part part = progress.part();
+			try {
+				execute((ffmpegBinaries == null ? FFmpeg.atPath() : FFmpeg.atPath(ffmpegBinaries))
+						.addInput(UrlInput.fromPath(source))
+						.addArguments("-c", "copy")
+						.addArguments("-movflags", "faststart")
+						.addOutput(UrlOutput.toPath(output).setFormat("mp4"))
+						.setProgressListener(part), "remux", -1, -1, false);
+				REMUXED.increment();
+				REMUXED_SECONDS.add(probe.duration());
+				return true;
+			} catch (RuntimeException e) {
+				System.out.println("Remuxing failed for " + relative + ", encoding instead");
+				Files.deleteIfExists(output);
+				part.reset();
+				return false;
+			}
+		}
+
+		/**
+		 * Encodes the source, decoding it in hardware if possible.
+		 * If hardware decoding fails, the encoding gets repeated with software decoding.
+		 *
+		 * @param output The file to write to.
+		 * @param probe  The probe result of the source, or null if it could not be probed.
+		 * @throws IOException If a failed output could not be deleted.
+		 */
+		private void encode(@NotNull Path output, @Nullable ProbeCache.Probe probe) throws IOException {
+			List<String> decoding = HARDWARE_DECODING == null ? List.of() : HARDWARE_DECODING.getArguments(probe == null ? null : probe.codec());
+			long start = System.nanoTime();
+			if (isSegmented(probe)) encodeSegmented(output, probe, decoding);
+			else encodeRange(output, decoding, -1, -1);
+			if (probe != null && probe.duration() > 0) {
+				ENCODED_SECONDS.add(probe.duration());
+				ENCODE_NANOS.add(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Decides whether the source is long enough to be encoded in segments.
+		 *
+		 * @param probe The probe result of the source, or null if it could not be probed.
+		 * @return Whether to encode the source in segments.
+		 */
+		private static boolean isSegmented(@Nullable ProbeCache.Probe probe) {
+			return chunkLength > 0 && probe != null && probe.duration() >= chunkMinimum && probe.duration() > chunkLength;
+		}
+
+		/**
+		 * Encodes the video stream of the source in segments, which get encoded in parallel by {@link #SEGMENTER}
+		 * and this thread, and then joins them while encoding the audio stream in one piece.
+		 *
+		 * @param output   The file to write to.
+		 * @param probe    The probe result of the source.
+		 * @param decoding The arguments for decoding the source in hardware, or nothing to decode in software.
+		 * @throws IOException If a segment could not be encoded.
+		 */
+		private void encodeSegmented(@NotNull Path output, @NotNull ProbeCache.Probe probe, @NotNull List<String> decoding) throws IOException {
+			SegmentedEncoding segmented = new SegmentedEncoding(output, probe.duration(), chunkLength);
+			System.out.println("Encoding " + relative + " in " + segmented.getSegmentCount() + " segments");
+			try {
+				segmented.encode(SEGMENTER::tryExecute, (start, length, segment) -> encodeRange(segment, decoding, start, length));
+				execute((ffmpegBinaries == null ? FFmpeg.atPath() : FFmpeg.atPath(ffmpegBinaries))
+						.addInput(UrlInput.fromPath(segmented.writeList()).setFormat("concat").addArguments("-safe", "0"))
+						.addInput(UrlInput.fromPath(source))
+						.addArguments("-map", "0:v:0")
+						.addArguments("-map", "1:a?")
+						.addArguments("-map_metadata", "1")
+						.addArguments("-c:v", "copy")
+						.addArguments("-c:a", audioEncoder)
+						.addArguments("-b:a", audioBitrate)
+						.addArguments("-movflags", "faststart")
+						.addOutput(UrlOutput.toPath(output).setFormat("mp4")), "join", -1, -1, false);
+			} finally {
+				segmented.delete();
+			}
+		}
+
+		/**
+		 * Encodes the source or a part of it, decoding it in hardware if possible.
+		 * If hardware decoding fails, the encoding gets repeated with software decoding,
+		 * which then also gets used for all remaining parts.
+		 *
+		 * @param output   The file to write to.
+		 * @param decoding The arguments for decoding the source in hardware, or nothing to decode in software.
+		 * @param start    The start of the part in seconds, or a negative value to encode the whole source.
+		 * @param length   The length of the part in seconds, or a negative value to encode until the end.
+		 * @throws IOException If a failed output could not be deleted.
+		 */
+		private void encodeRange(@NotNull Path output, @NotNull List<String> decoding, double start, double length) throws IOException {
+			if (softwareDecoding) decoding = List.of();
+			ProgressMetrics.Encoding.Part part = progress.part();
+			SESSIONS.acquire(videoEncoder);
+			try {
+				try {
+					execute(createEncoder(output, decoding, start, length).setProgressListener(part), "encode", start, length, !decoding.isEmpty());
+				} catch (RuntimeException e) {
+					if (decoding.isEmpty()) throw e;
+					System.out.println("Hardware decoding failed for " + relative + ", retrying in software");
+					if (!softwareDecoding) {
+						softwareDecoding = true;
+						HARDWARE_DECODING.failed();
+					}
+					Files.deleteIfExists(output);
+					part.reset();
+					execute(createEncoder(output, List.of(), start, length).setProgressListener(part), "encode", start, length, false);
+				}
+			} finally {
+				SESSIONS.release(videoEncoder);
+			}
+		}
+
+		/**
+		 * Runs an FFMpeg command and records it as an event.
+		 *
+		 * @param command  The command.
+		 * @param mode     What the command does, which is encode, remux or join.
+		 * @param start    The start of the encoded part in seconds, or a negative value for the whole source.
+		 * @param length   The length of the encoded part in seconds, or a negative value to encode until the end.
+		 * @param hardware Whether the source gets decoded in hardware.
+		 */
+		private void execute(@NotNull FFmpeg command, @NotNull String mode, double start, double length, boolean hardware) {
+			Events.Encode event = new Events.Encode();
+			event.begin();
+			try {
+				command.execute();
+				event.succeeded = true;
+			} finally {
+				if (event.shouldCommit()) {
+					event.file = source.toString();
+					event.mode = mode;
+					event.start = start;
+					event.length = length;
+					event.hardwareDecoding = hardware;
+					event.commit();
+				}
+			}
+		}
+
+		/**
+		 * Creates the FFMpeg command encoding the source.
+		 * When only encoding a part, the audio gets left out, as it gets encoded in one piece when joining the parts.
+		 *
+		 * @param output   The file to write to.
+		 * @param decoding The arguments for decoding the source in hardware, or nothing to decode in software.
+		 * @param start    The start of the part in seconds, or a negative value to encode the whole source.
+		 * @param length   The length of the part in seconds, or a negative value to encode until the end.
+		 * @return The command.
+		 */
+		@NotNull
+		private FFmpeg createEncoder(@NotNull Path output, @NotNull List<String> decoding, double start, double length) {
+			UrlInput input = UrlInput.fromPath(source);
+			// Seeking on the input jumps to the preceding keyframe and decodes from there, so parts join without gaps.
+			if (start >= 0) input.setPosition((long) (start * 1000), TimeUnit.MILLISECONDS);
+			if (length >= 0) input.setDuration((long) (length * 1000), TimeUnit.MILLISECONDS);
+			for (int i = 0; i + 1 < decoding.size(); i += 2) input.addArguments(decoding.get(i), decoding.get(i + 1));
+			FFmpeg encoder = (ffmpegBinaries == null ? FFmpeg.atPath() : FFmpeg.atPath(ffmpegBinaries))
+					.addInput(input)
+					.addArguments("-movflags", "faststart")
+					.addArguments("-c:v", videoEncoder)
+					.addArguments("-c:a", audioEncoder)
+					.addArguments("-b:a", audioBitrate)
+					.addOutput(UrlOutput.toPath(output).setFormat("mp4"));
+			for (int i = 0; i + 1 < videoArguments.size(); i += 2)
+				encoder.addArguments(videoArguments.get(i), videoArguments.get(i + 1));
+			if (constantQuality != null) encoder.addArguments("-cq:v", constantQuality);
+			if (qp != null) encoder.addArguments("-qp", qp);
+			if (maxRate != null) encoder.addArguments("-maxrate", maxRate);
+			if (videoPreset != null) encoder.addArguments("-preset:v", videoPreset);
+			if (audioProfile != null) encoder.addArguments("-profile:a", audioProfile);
+			if (rc != null) encoder.addArguments("-rc", rc);
+			encoder.addArguments("-threads", start >= 0 ? segmentThreads : encodeThreads);
+			if (start >= 0) encoder.addArgument("-an");
+			return encoder;
+		}
+
+		/**
+		 * Probes the source, which usually is answered by the cache.
+		 *
+		 * @return The result, or null if the source could not be probed.
+		 */
+		@Nullable
+		private ProbeCache.Probe probeSource() {
+			try {
+				return PROBER.submit(() -> PROBES.probe(source)).get();
+			} catch (ExecutionException e) {
+				PROBE_FAILURES.increment();
+				return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		/**
+		 * Renames a file encoded into the target directory to its final name and adds it to the index.
+		 * This replaces the copy which follows encodings into the temporary directory, so it counts as that task.
+		 *
+		 * @param part The encoded file next to the target.
+		 */
+		private void publish(@NotNull Path part) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(part, BasicFileAttributes.class);
+				long hash = ContentIndex.hash(part, attributes.size());
+				ContentIndex.Entry existing = INDEX.get(relative);
+				CopyEngine.rename(part, target, existing != null && origin.equals(existing.origin()));
+				LISTING.added(target, attributes.size(), attributes.lastModifiedTime().toMillis());
+				INDEX.put(relative, new ContentIndex.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash, origin, originChecksum));
+			} catch (IOException e) {
+				deletePartFile(part);
+				throw new UncheckedIOException(e);
+			} finally {
+				TASK_COMPLETED.increment();
+			}
+		}
+
+		/**
+		 * Deletes the partial output of a failed encoding into the target directory.
+		 *
+		 * @param part The partial file.
+		 */
+		private static void deletePartFile(@NotNull Path part) {
+			try {
+				Files.deleteIfExists(part);
+			} catch (IOException e) {
+				System.err.println("Could not delete " + part + ": " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Deletes the partial output of a failed encoding together with any segments left behind,
+		 * so neither the target nor the temporary directory fills up with the remains of failures.
+		 *
+		 * @param output The partial file in the target or the temporary directory.
+		 */
+		private static void deleteOutput(@NotNull Path output) {
+			deletePartFile(output);
+			Path segments = SegmentedEncoding.getDirectory(output);
+			try {
+				SegmentedEncoding.delete(segments);
+			} catch (IOException e) {
+				System.err.println("Could not delete " + segments + ": " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Estimates how large the encoded file will get from the bitrate and duration of the source,
+		 * limited by the maximum bitrate if one was given.
+		 * If the source can't be probed, its size gets used instead.
+		 *
+		 * @param probe The probe result of the source, or null if it could not be probed.
+		 * @return The estimated size in bytes.
+		 */
+		private long estimateOutputSize(@Nullable ProbeCache.Probe probe) {
+			if (probe != null) {
+				try {
+					long bitrate = probe.bitrate();
+					if (maxRate != null) bitrate = Math.min(bitrate, parseBitrate(maxRate));
+					if (audioBitrate != null) bitrate += parseBitrate(audioBitrate);
+					if (bitrate > 0 && probe.duration() > 0) return (long) (bitrate / 8.0 * probe.duration() * 1.05);
+				} catch (NumberFormatException ignored) {
+				}
+			}
+			try {
+				return Files.size(source);
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+
+		/**
+		 * Parses a bitrate as given to FFMpeg, like "8M" or "160k".
+		 *
+		 * @param bitrate The bitrate with an optional suffix.
+		 * @return The bitrate in bits per second.
+		 * @throws NumberFormatException If the bitrate isn't a number.
+		 */
+		private static long parseBitrate(@NotNull String bitrate) throws NumberFormatException {
+			long factor = switch (Character.toLowerCase(bitrate.charAt(bitrate.length() - 1))) {
+				case 'k' -> 1000;
+				case 'm' -> 1000_000;
+				case 'g' -> 1000_000_000;
+				default -> 1;
+			};
+			String number = factor == 1 ? bitrate : bitrate.substring(0, bitrate.length() - 1);
+			return (long) (Double.parseDouble(number) * factor);
+		}
+
 		@Override
 		public boolean deleteSourceIfExists() {
-			if (Files.exists(target)) {
-				try {
-					int[] dimensions = COPIER.submit(new DimensionCalculator()).get();
-					if (dimensions[1] == 1080 && dimensions[0] != 1920) {
-						System.out.println("Renewing " + relative);
-						Files.delete(target);
+			try {
+				boolean exists;
+				ContentIndex.Fingerprint recorded;
+				if (PLAN == null) {
+					origin = ContentIndex.fingerprint(source);
+					ContentIndex.Entry existing = findExisting(relative);
+					exists = existing != null;
+					recorded = exists ? existing.origin() : null;
+				} else {
+					// When planning, the target doesn't get hashed, as only its recorded origin matters,
+					// and the source only gets read if it may be the origin of an indexed file of the same size.
+					exists = LISTING.exists(target);
+					ContentIndex.Entry existing = exists ? INDEX.get(relative) : null;
+					recorded = existing == null ? null : existing.origin();
+					if (recorded != null ? recorded.size() == size : !exists && INDEX.hasOriginOfSize(size))
+						origin = ContentIndex.fingerprint(source);
+				}
+				// Targets which existed before the index have no known origin, so like before only their name gets trusted.
+				if (exists && recorded != null && !recorded.equals(origin)) {
+					// The target was created from different content, so the source isn't a duplicate of it.
+					if (PLAN != null) PLAN.keep();
+					else System.out.println("Keeping " + relative + " as the target was created from a different source");
+					return true;
+				} else if (exists) {
+					// When planning, only cached probes get used, as running FFProbe on every target would take too long.
+					ProbeCache.Probe probe = PLAN == null ? PROBER.submit(new DimensionCalculator()).get() : PROBES == null ? null : PROBES.peek(target);
+					if (probe != null && probe.height() == 1080 && probe.width() != 1920) {
+						if (PLAN != null) PLAN.renew();
+						else {
+							System.out.println("Renewing " + relative);
+							Files.delete(target);
+							LISTING.removed(target);
+							INDEX.remove(relative);
+						}
 					} else {
-						System.out.println("Deleting " + relative);
-						Files.delete(source);
+						deleteSource("Deleting " + relative);
 						return true;
 					}
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				} catch (InterruptedException ignored) {
-				} catch (ExecutionException e) {
-					throw new RuntimeException(e);
-				}
+				} else if (origin != null && deleteIfDuplicate()) return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException ignored) {
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e);
 			}
 			TASK_COUNT.increment();
 			return false;
 		}
 
 		/**
-		 * Wait for the encoding to finish. Returns false if the thread was interrupted.
+		 * As the encoded file differs from the source, the checksum of the entire source it was encoded from
+		 * has to be stored in the index and match the source, as the sampled fingerprint alone isn't enough to delete it.
 		 *
-		 * @param encode The process to wait for.
-		 * @return Whether the process could finish without an interrupt.
-		 * @throws IOException Gets thrown in case the file could not be encoded.
+		 * @param existing The file in the target directory.
+		 * @return Whether the file still exists and was encoded from the same content.
 		 */
-		private boolean await(@NotNull Process encode) throws IOException {
+		@Override
+		protected boolean isSameContent(@NotNull Path existing) {
+			ContentIndex.Entry entry = INDEX.get(targetPath.relativize(existing));
+			if (entry == null || entry.originChecksum() == ContentIndex.Entry.UNKNOWN_CHECKSUM || !Files.exists(existing))
+				return false;
 			try {
-				if (encode.waitFor() == 0) return true;
-				else throw new IOException("Encoding failed for " + relative.toString());
-			} catch (InterruptedException e) {
+				return ContentIndex.checksum(source) == entry.originChecksum();
+			} catch (IOException e) {
 				return false;
 			}
 		}
 
 		/**
 		 * The callable used to get the size of the video.
+		 * The result only gets probed if it isn't cached yet.
 		 */
-		private class DimensionCalculator implements Callable<int[]> {
+		private class DimensionCalculator implements Callable<ProbeCache.Probe> {
 
 			@Override
-			public int[] call() {
-				FFprobeResult result = FFprobe.atPath().setInput(target).setShowStreams(true).execute();
-				for (Stream stream : result.getStreams()) {
-					if (stream.getCodecType() == StreamType.VIDEO)
-						return new int[]{stream.getWidth(), stream.getHeight()};
-				}
-				throw new IllegalArgumentException("File has no video stream");
+			public ProbeCache.Probe call() throws IOException {
+				return PROBES.probe(target);
 			}
 		}
 	}
-}
\ No newline at end of file
+}
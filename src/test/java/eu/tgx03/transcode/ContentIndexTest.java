@@ -0,0 +1,112 @@
+package eu.tgx03.transcode;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests storing the index in its log and reading it back.
+ */
+class ContentIndexTest {
+
+	/**
+	 * The target root the index gets stored in.
+	 */
+	@TempDir
+	Path root;
+
+	/**
+	 * All entries, including unknown origins and removals, have to survive closing and reopening the index.
+	 */
+	@Test
+	void roundTrip() throws IOException {
+		ContentIndex.Fingerprint origin = new ContentIndex.Fingerprint(1000, 42);
+		ContentIndex.Entry encoded = new ContentIndex.Entry(500, 1234, 7, origin, 99);
+		ContentIndex.Entry existing = new ContentIndex.Entry(300, 5678, 8, null, ContentIndex.Entry.UNKNOWN_CHECKSUM);
+		try (ContentIndex index = new ContentIndex(root)) {
+			index.put(Path.of("a", "encoded.mp4"), encoded);
+			index.put(Path.of("existing.mp4"), existing);
+			index.put(Path.of("removed.mp4"), existing);
+			index.remove(Path.of("removed.mp4"));
+		}
+
+		try (ContentIndex index = new ContentIndex(root)) {
+			assertEquals(encoded, index.get(Path.of("a", "encoded.mp4")));
+			assertEquals(existing, index.get(Path.of("existing.mp4")));
+			assertNull(index.get(Path.of("removed.mp4")));
+			assertEquals(Path.of("a", "encoded.mp4"), index.findOrigin(origin));
+			assertEquals(Path.of("existing.mp4"), index.findOrigin(existing.content()));
+			assertTrue(index.hasOriginOfSize(1000));
+			assertFalse(index.hasOriginOfSize(500));
+		}
+	}
+
+	/**
+	 * A record torn by a crash gets dropped, and records appended afterwards can still be read.
+	 */
+	@Test
+	void truncatedTail() throws IOException {
+		ContentIndex.Entry first = new ContentIndex.Entry(1, 2, 3, null, ContentIndex.Entry.UNKNOWN_CHECKSUM);
+		ContentIndex.Entry second = new ContentIndex.Entry(4, 5, 6, new ContentIndex.Fingerprint(7, 8), 9);
+		try (ContentIndex index = new ContentIndex(root)) {
+			index.put(Path.of("first"), first);
+		}
+		Path file = root.resolve(ContentIndex.FILE_NAME);
+		Path snapshot = root.resolve("snapshot");
+		try (ContentIndex index = new ContentIndex(root)) {
+			index.put(Path.of("second"), second);
+			// Before closing, the second record is at the end of the log.
+			Files.copy(file, snapshot);
+		}
+		Files.move(snapshot, file, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		ContentIndex.Entry third = new ContentIndex.Entry(10, 11, 12, null, ContentIndex.Entry.UNKNOWN_CHECKSUM);
+		try (ContentIndex index = new ContentIndex(root)) {
+			assertEquals(first, index.get(Path.of("first")));
+			assertNull(index.get(Path.of("second")));
+			index.put(Path.of("third"), third);
+		}
+		try (ContentIndex index = new ContentIndex(root)) {
+			assertEquals(first, index.get(Path.of("first")));
+			assertEquals(third, index.get(Path.of("third")));
+		}
+	}
+
+	/**
+	 * Garbage after the last record, like a bogus or negative length, must not prevent loading the valid records.
+	 */
+	@Test
+	void corruptTail() throws IOException {
+		ContentIndex.Entry entry = new ContentIndex.Entry(1, 2, 3, null, ContentIndex.Entry.UNKNOWN_CHECKSUM);
+		try (ContentIndex index = new ContentIndex(root)) {
+			index.put(Path.of("file"), entry);
+		}
+		Path file = root.resolve(ContentIndex.FILE_NAME);
+		long size = Files.size(file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(12).putInt(-5).putInt(0).putInt(0xDEADBEEF).flip());
+		}
+
+		try (ContentIndex index = new ContentIndex(root)) {
+			assertEquals(entry, index.get(Path.of("file")));
+			assertEquals(size, Files.size(file), "The corrupt tail wasn't cut off");
+		}
+		Files.write(file, new byte[]{0, 0, 0, 20, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24},
+				StandardOpenOption.APPEND);
+		try (ContentIndex index = new ContentIndex(root, true)) {
+			assertEquals(entry, index.get(Path.of("file")));
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package eu.tgx03.transcode;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the queue with many producers and a single consumer running at the same time.
+ */
+class LaneQueueTest {
+
+	/**
+	 * The number of producer threads.
+	 */
+	private static final int PRODUCERS = 8;
+	/**
+	 * The number of elements each producer adds.
+	 */
+	private static final int PER_PRODUCER = 200_000;
+	/**
+	 * The number of lanes.
+	 */
+	private static final int LANES = 4;
+
+	/**
+	 * Lets all producers add at once while the consumer takes,
+	 * then checks that every element arrived exactly once and each producer's elements kept their order within a lane.
+	 */
+	@Test
+	void concurrentProducersLoseAndDuplicateNothing() throws InterruptedException {
+		LaneQueue<Integer> queue = new LaneQueue<>(LANES, element -> element % LANES);
+		int total = PRODUCERS * PER_PRODUCER;
+		BitSet seen = new BitSet(total);
+		int[][] last = new int[PRODUCERS][LANES];
+		for (int[] lanes : last) Arrays.fill(lanes, -1);
+		AtomicReference<AssertionError> failure = new AtomicReference<>();
+
+		Thread consumer = Thread.ofPlatform().start(() -> {
+			try {
+				for (int taken = 0; taken < total; taken++) {
+					Integer element = queue.take();
+					assertNotNull(element, "The queue returned null while elements were outstanding");
+					assertFalse(seen.get(element), "Element " + element + " was taken twice");
+					seen.set(element);
+					int producer = element / PER_PRODUCER;
+					int lane = element % LANES;
+					assertTrue(element > last[producer][lane], "Element " + element + " overtook an earlier one of its lane");
+					last[producer][lane] = element;
+				}
+			} catch (AssertionError e) {
+				failure.set(e);
+			} catch (InterruptedException e) {
+				failure.set(new AssertionError(e));
+			}
+		});
+
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			int first = p * PER_PRODUCER;
+			producers[p] = Thread.ofPlatform().start(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < PER_PRODUCER; i++) queue.offer(first + i);
+			});
+		}
+		start.countDown();
+		for (Thread producer : producers) producer.join();
+		consumer.join(TimeUnit.SECONDS.toMillis(30));
+
+		assertFalse(consumer.isAlive(), "The consumer didn't receive all elements");
+		if (failure.get() != null) throw failure.get();
+		assertEquals(total, seen.cardinality());
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Hands single elements to a consumer which parks in between, so every element has to unpark it.
+	 */
+	@Test
+	void offerWakesParkedConsumer() throws InterruptedException {
+		LaneQueue<Integer> queue = new LaneQueue<>(LANES, element -> element % LANES);
+		for (int i = 0; i < 1000; i++) {
+			AtomicReference<Integer> result = new AtomicReference<>();
+			Thread consumer = Thread.ofPlatform().start(() -> {
+				try {
+					result.set(queue.take());
+				} catch (InterruptedException ignored) {
+				}
+			});
+			awaitParked(consumer);
+			queue.offer(i);
+			consumer.join(TimeUnit.SECONDS.toMillis(5));
+			assertFalse(consumer.isAlive(), "The consumer wasn't woken up by element " + i);
+			assertEquals(i, result.get());
+		}
+	}
+
+	/**
+	 * Closes the queue while the consumer waits, which has to return null instead of waiting forever.
+	 */
+	@Test
+	void closeWakesParkedConsumer() throws InterruptedException {
+		LaneQueue<Integer> queue = new LaneQueue<>(LANES, element -> element % LANES);
+		AtomicReference<Object> result = new AtomicReference<>("not returned");
+		Thread consumer = Thread.ofPlatform().start(() -> {
+			try {
+				result.set(queue.take());
+			} catch (InterruptedException ignored) {
+			}
+		});
+		awaitParked(consumer);
+		queue.close();
+		consumer.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse(consumer.isAlive(), "The consumer wasn't woken up by closing the queue");
+		assertNull(result.get());
+	}
+
+	/**
+	 * Waits until a thread parks, giving up after a few seconds.
+	 *
+	 * @param thread The thread.
+	 */
+	private static void awaitParked(Thread thread) {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (thread.getState() != Thread.State.WAITING) {
+			assertTrue(System.nanoTime() < deadline, "The consumer never parked");
+			Thread.onSpinWait();
+		}
+	}
+}
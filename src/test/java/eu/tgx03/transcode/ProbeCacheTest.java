@@ -0,0 +1,156 @@
+package eu.tgx03.transcode;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests storing probe results in the cache file and reading them back.
+ */
+class ProbeCacheTest {
+
+	/**
+	 * The target root the cache gets stored in, which also contains the probed files.
+	 */
+	@TempDir
+	Path root;
+
+	/**
+	 * A stored result has to be found by the next run, as long as the file didn't change.
+	 */
+	@Test
+	void roundTrip() throws IOException {
+		Path video = createVideo("video.mkv");
+		ProbeCache.Probe probe = new ProbeCache.Probe(1920, 1080, "hevc", 12.5, 4_000_000);
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			store(cache, video, probe);
+		}
+
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			assertEquals(probe, cache.peek(video));
+		}
+		try (ProbeCache cache = new ProbeCache(root, 16, null, true)) {
+			assertEquals(probe, cache.peek(video));
+		}
+		Files.setLastModifiedTime(video, FileTime.fromMillis(Files.getLastModifiedTime(video).toMillis() + 2000));
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			assertNull(cache.peek(video), "The result of a modified file was used");
+		}
+	}
+
+	/**
+	 * Superseded results get dropped when the file gets compacted, while the newest ones are kept.
+	 */
+	@Test
+	void compaction() throws IOException {
+		Path video = createVideo("video.mkv");
+		ProbeCache.Probe probe = new ProbeCache.Probe(1280, 720, "h264", 60, 2_000_000);
+		Path file = root.resolve(ProbeCache.FILE_NAME);
+		long size;
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			store(cache, video, new ProbeCache.Probe(640, 480, "h263", 60, 1_000_000));
+			size = Files.size(file);
+			store(cache, video, new ProbeCache.Probe(640, 480, "h263", 60, 1_000_000));
+			store(cache, video, probe);
+		}
+
+		assertEquals(size, Files.size(file), "The file wasn't compacted");
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			assertEquals(probe, cache.peek(video));
+		}
+	}
+
+	/**
+	 * A record torn by a crash gets dropped, and records appended afterwards can still be read.
+	 */
+	@Test
+	void truncatedTail() throws IOException {
+		Path first = createVideo("first.mkv");
+		Path second = createVideo("second.mkv");
+		ProbeCache.Probe probe = new ProbeCache.Probe(3840, 2160, "av1", 100, 8_000_000);
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			store(cache, first, probe);
+			store(cache, second, probe);
+		}
+		Path file = root.resolve(ProbeCache.FILE_NAME);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		Path third = createVideo("third.mkv");
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			assertEquals(probe, cache.peek(first));
+			assertNull(cache.peek(second));
+			store(cache, third, probe);
+		}
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			assertEquals(probe, cache.peek(first));
+			assertEquals(probe, cache.peek(third));
+		}
+	}
+
+	/**
+	 * Garbage after the last record, like a negative length or a wrong checksum, must not prevent loading the cache.
+	 */
+	@Test
+	void corruptTail() throws IOException {
+		Path video = createVideo("video.mkv");
+		ProbeCache.Probe probe = new ProbeCache.Probe(1920, 1080, "vp9", 30, 3_000_000);
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			store(cache, video, probe);
+		}
+		Path file = root.resolve(ProbeCache.FILE_NAME);
+		long size = Files.size(file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(12).putInt(-5).putInt(0).putInt(0xDEADBEEF).flip());
+		}
+
+		try (ProbeCache cache = new ProbeCache(root, 16, null, true)) {
+			assertEquals(probe, cache.peek(video));
+		}
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			assertEquals(probe, cache.peek(video));
+			assertEquals(size, Files.size(file), "The corrupt tail wasn't cut off");
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(12).putInt(4).putInt(0xDEADBEEF).putInt(0).flip());
+		}
+		try (ProbeCache cache = new ProbeCache(root, 16, null)) {
+			assertEquals(probe, cache.peek(video));
+		}
+	}
+
+	/**
+	 * Creates a file to store results for, as results of files which don't exist get dropped when the cache gets closed.
+	 *
+	 * @param name The name of the file.
+	 * @return The file.
+	 * @throws IOException If the file could not be created.
+	 */
+	private Path createVideo(String name) throws IOException {
+		return Files.write(root.resolve(name), name.getBytes());
+	}
+
+	/**
+	 * Stores a result for a file like a probe would.
+	 *
+	 * @param cache The cache.
+	 * @param video The probed file.
+	 * @param probe The result.
+	 * @throws IOException If the attributes of the file could not be read.
+	 */
+	private static void store(ProbeCache cache, Path video, ProbeCache.Probe probe) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(video, BasicFileAttributes.class);
+		cache.put(video.toAbsolutePath().toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), probe);
+	}
+}
@@ -0,0 +1,202 @@
+package eu.tgx03.transcode;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests writing the journal and resuming a run from the journal of a previous one.
+ */
+class RunJournalTest {
+
+	/**
+	 * The directory the source and target get created in.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Directories which didn't change since the previous run don't have to be listed again.
+	 */
+	@Test
+	void resumeSkipsUnchangedDirectories() throws IOException {
+		Path source = Files.createDirectories(directory.resolve("source"));
+		Path target = Files.createDirectories(directory.resolve("target"));
+		Path child = Files.createDirectories(source.resolve("child"));
+		scan(source, target, child);
+
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertEquals(List.of(child), journal.getScannedSubdirectories(source));
+			assertEquals(List.of(), journal.getScannedSubdirectories(child));
+		}
+	}
+
+	/**
+	 * A file added to a directory after it got scanned has to be found by the resumed run,
+	 * which then records the directory with its new modification time.
+	 */
+	@Test
+	void resumeRescansModifiedDirectories() throws IOException {
+		Path source = Files.createDirectories(directory.resolve("source"));
+		Path target = Files.createDirectories(directory.resolve("target"));
+		Path child = Files.createDirectories(source.resolve("child"));
+		scan(source, target, child);
+
+		Files.createFile(child.resolve("added"));
+		// Some file systems only store seconds, so the change has to be visible regardless.
+		FileTime modified = Files.getLastModifiedTime(child);
+		Files.setLastModifiedTime(child, FileTime.from(modified.to(TimeUnit.SECONDS) + 2, TimeUnit.SECONDS));
+
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertEquals(List.of(child), journal.getScannedSubdirectories(source));
+			assertNull(journal.getScannedSubdirectories(child), "The modified directory wasn't scanned again");
+			journal.scanning(child);
+			journal.scanned(child);
+			journal.planned(RunJournal.Kind.MOVE, child.resolve("added"), target.resolve("child").resolve("added"));
+		}
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertEquals(List.of(), journal.getScannedSubdirectories(child));
+		}
+	}
+
+	/**
+	 * Operations which weren't completed have to be resumed, and started ones have to be recognized as such.
+	 */
+	@Test
+	void roundTrip() throws IOException {
+		Path source = Files.createDirectories(directory.resolve("source"));
+		Path target = Files.createDirectories(directory.resolve("target"));
+		try (RunJournal journal = new RunJournal(source, target)) {
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("planned"), target.resolve("planned"));
+			journal.planned(RunJournal.Kind.VIDEO, source.resolve("started.mkv"), target.resolve("started.mp4"));
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("completed"), target.resolve("completed"));
+			journal.started(source.resolve("started.mkv"));
+			journal.started(source.resolve("completed"));
+			journal.completed(source.resolve("completed"));
+		}
+
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertEquals(List.of(
+					new RunJournal.Operation(RunJournal.Kind.MOVE, source.resolve("planned"), target.resolve("planned"), false),
+					new RunJournal.Operation(RunJournal.Kind.VIDEO, source.resolve("started.mkv"), target.resolve("started.mp4"), true)
+			), List.copyOf(journal.getUnfinished()));
+			assertTrue(journal.isUnfinished(source.resolve("planned")));
+			assertFalse(journal.isUnfinished(source.resolve("completed")));
+		}
+	}
+
+	/**
+	 * A journal without unfinished operations gets deleted, so the next run starts from scratch.
+	 */
+	@Test
+	void completedRunDeletesJournal() throws IOException {
+		Path source = Files.createDirectories(directory.resolve("source"));
+		Path target = Files.createDirectories(directory.resolve("target"));
+		try (RunJournal journal = new RunJournal(source, target)) {
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("file"), target.resolve("file"));
+			journal.completed(source.resolve("file"));
+		}
+		assertFalse(Files.exists(target.resolve(RunJournal.FILE_NAME)));
+	}
+
+	/**
+	 * A record torn by a crash gets dropped, and records appended by the resumed run can still be read.
+	 */
+	@Test
+	void truncatedTail() throws IOException {
+		Path source = Files.createDirectories(directory.resolve("source"));
+		Path target = Files.createDirectories(directory.resolve("target"));
+		try (RunJournal journal = new RunJournal(source, target)) {
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("first"), target.resolve("first"));
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("second"), target.resolve("second"));
+			journal.completed(source.resolve("second"));
+		}
+		Path file = target.resolve(RunJournal.FILE_NAME);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertTrue(journal.isUnfinished(source.resolve("first")));
+			assertTrue(journal.isUnfinished(source.resolve("second")), "The torn completion was read");
+			resume(journal);
+			journal.completed(source.resolve("first"));
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("third"), target.resolve("third"));
+		}
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertFalse(journal.isUnfinished(source.resolve("first")));
+			assertTrue(journal.isUnfinished(source.resolve("second")));
+			assertTrue(journal.isUnfinished(source.resolve("third")));
+		}
+	}
+
+	/**
+	 * Garbage after the last record, like a negative length or a wrong checksum, must not prevent resuming.
+	 */
+	@Test
+	void corruptTail() throws IOException {
+		Path source = Files.createDirectories(directory.resolve("source"));
+		Path target = Files.createDirectories(directory.resolve("target"));
+		try (RunJournal journal = new RunJournal(source, target)) {
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("file"), target.resolve("file"));
+		}
+		Path file = target.resolve(RunJournal.FILE_NAME);
+		long size = Files.size(file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(12).putInt(-5).putInt(0).putInt(0xDEADBEEF).flip());
+		}
+
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertTrue(journal.isUnfinished(source.resolve("file")));
+			assertEquals(size, Files.size(file), "The corrupt tail wasn't cut off");
+			resume(journal);
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(12).putInt(4).putInt(0xDEADBEEF).putInt(0).flip());
+		}
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertTrue(journal.isUnfinished(source.resolve("file")));
+		}
+	}
+
+	/**
+	 * Plans all unfinished operations again, like a resumed run does, so the journal gets kept.
+	 *
+	 * @param journal The journal of the resumed run.
+	 */
+	private static void resume(RunJournal journal) {
+		for (RunJournal.Operation operation : List.copyOf(journal.getUnfinished())) {
+			journal.planned(operation.kind(), operation.source(), operation.target());
+		}
+	}
+
+	/**
+	 * Scans the source with a single subdirectory and leaves an operation unfinished, so the journal gets kept.
+	 *
+	 * @param source The source root.
+	 * @param target The target root.
+	 * @param child  The subdirectory of the source.
+	 * @throws IOException If the journal could not be written.
+	 */
+	private static void scan(Path source, Path target, Path child) throws IOException {
+		try (RunJournal journal = new RunJournal(source, target)) {
+			assertNull(journal.getScannedSubdirectories(source));
+			journal.scanning(source);
+			journal.scanning(child);
+			journal.scanned(child);
+			journal.scanned(source);
+			journal.planned(RunJournal.Kind.MOVE, source.resolve("file"), target.resolve("file"));
+		}
+	}
+}